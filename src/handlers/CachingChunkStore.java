@@ -0,0 +1,296 @@
+package handlers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import interfaces.Chunk;
+
+/**
+ * Keeps recently read chunks in memory, up to a number of bytes, evicting the
+ * least recently used first.
+ *
+ * When a file is being read in order, i.e. chunk n is asked for right after
+ * chunk n - 1, chunks n + 1 to n + readAhead are loaded in the background, so
+ * a restore is served from memory after its first few GETCHUNKs.
+ *
+ * Cached chunks are found through a ChunkKeyMap and kept in a list from most
+ * to least recently used. Backend I/O, reads and writes alike, is done outside
+ * the lock of the cache. Every put or remove bumps a generation once the
+ * backend has done it, and content read before that is not cached, so a
+ * write racing a read never leaves stale content behind.
+ */
+public class CachingChunkStore implements ChunkStore {
+	private static final int TRACKED_FILES = 1024;
+
+	private final ChunkStore backend;
+	private final long capacity;
+	private final int readAhead;
+	private final ChunkKeyMap<Entry> cache = new ChunkKeyMap<Entry>();
+	/**
+	 * Sentinel of the recency list: head.next is the most recently used entry,
+	 * head.prev the least.
+	 */
+	private final Entry head = new Entry(null, 0, null);
+	private final Map<String, Integer> lastRead = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+			return size() > TRACKED_FILES;
+		}
+	};
+	private final ExecutorService loader = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "chunk-read-ahead");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private long cachedBytes = 0;
+	private long generation = 0;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong prefetched = new AtomicLong();
+	private final AtomicLong evicted = new AtomicLong();
+
+	/**
+	 * @param backend
+	 *            Store the chunks are read from
+	 * @param capacity
+	 *            Maximum number of bytes kept in memory
+	 * @param readAhead
+	 *            Number of chunks loaded ahead of a sequential reader
+	 */
+	public CachingChunkStore(ChunkStore backend, long capacity, int readAhead) {
+		this.backend = backend;
+		this.capacity = capacity;
+		this.readAhead = readAhead;
+	}
+
+	@Override
+	public ByteBuffer get(String fileId, int chunkNo) throws IOException {
+		ByteBuffer content;
+		boolean sequential;
+		long seen;
+
+		synchronized (this) {
+			Entry entry = cache.get(fileId, chunkNo);
+			content = null;
+			if (entry != null) {
+				content = entry.content;
+				entry.unlink();
+				entry.linkAfter(head);
+			}
+			Integer previous = lastRead.put(fileId, chunkNo);
+			sequential = previous != null && previous == chunkNo - 1;
+			seen = generation;
+		}
+
+		if (content != null)
+			hits.incrementAndGet();
+		else {
+			misses.incrementAndGet();
+			content = backend.get(fileId, chunkNo);
+			if (content != null)
+				content = insert(fileId, chunkNo, content, seen);
+		}
+
+		if (sequential)
+			for (int next = chunkNo + 1; next <= chunkNo + readAhead; next++)
+				prefetch(fileId, next);
+
+		return content == null ? null : content.duplicate();
+	}
+
+	@Override
+	public boolean put(Chunk chunk) throws IOException {
+		try {
+			return backend.put(chunk);
+		} finally {
+			changed(chunk.getFileId(), chunk.getChunkNumber());
+		}
+	}
+
+	@Override
+	public boolean putReference(String fileId, int chunkNo, int replicationDegree, String fingerprint)
+			throws IOException {
+		try {
+			return backend.putReference(fileId, chunkNo, replicationDegree, fingerprint);
+		} finally {
+			changed(fileId, chunkNo);
+		}
+	}
+
+	@Override
+	public boolean contains(String fileId, int chunkNo) {
+		return backend.contains(fileId, chunkNo);
+	}
+
+	@Override
+	public long size(String fileId, int chunkNo) throws IOException {
+		return backend.size(fileId, chunkNo);
+	}
+
+	@Override
+	public boolean remove(String fileId, int chunkNo) throws IOException {
+		try {
+			return backend.remove(fileId, chunkNo);
+		} finally {
+			changed(fileId, chunkNo);
+		}
+	}
+
+	@Override
+	public int removeFile(String fileId) throws IOException {
+		try {
+			return backend.removeFile(fileId);
+		} finally {
+			synchronized (this) {
+				generation++;
+				for (int chunkNo : cache.chunkNumbers(fileId))
+					invalidate(fileId, chunkNo);
+				lastRead.remove(fileId);
+			}
+		}
+	}
+
+	@Override
+	public List<StoredChunk> list() throws IOException {
+		return backend.list();
+	}
+
+	@Override
+	public void close() throws IOException {
+		loader.shutdownNow();
+		backend.close();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "cache " + cachedBytes + "/" + capacity + " bytes, " + hits + " hits, " + misses + " misses, "
+				+ prefetched + " read ahead, " + evicted + " evicted; " + backend;
+	}
+
+	/**
+	 * Loads a chunk in the background, unless it is cached or not stored.
+	 */
+	private void prefetch(String fileId, int chunkNo) {
+		synchronized (this) {
+			if (cache.containsKey(fileId, chunkNo))
+				return;
+		}
+		if (!backend.contains(fileId, chunkNo))
+			return;
+
+		loader.execute(() -> {
+			try {
+				long seen;
+				synchronized (this) {
+					if (cache.containsKey(fileId, chunkNo))
+						return;
+					seen = generation;
+				}
+
+				ByteBuffer content = backend.get(fileId, chunkNo);
+				if (content != null && insert(fileId, chunkNo, content, seen) != null)
+					prefetched.incrementAndGet();
+			} catch (IOException e) {
+				System.err.println("Failed to read ahead chunk " + chunkNo + ".");
+			}
+		});
+	}
+
+	/**
+	 * Caches content read from the backend, evicting the least recently used
+	 * chunks to make room. Content is not cached if a chunk was written or
+	 * removed since the read began, as it may be stale.
+	 *
+	 * @param seen
+	 *            Generation when the read began
+	 * @return The read-only content
+	 */
+	private synchronized ByteBuffer insert(String fileId, int chunkNo, ByteBuffer content, long seen) {
+		ByteBuffer cached = content.slice().asReadOnlyBuffer();
+
+		if (cached.capacity() > capacity || generation != seen)
+			return cached;
+
+		Entry entry = new Entry(fileId, chunkNo, cached);
+		Entry previous = cache.put(fileId, chunkNo, entry);
+		if (previous != null) {
+			previous.unlink();
+			cachedBytes -= previous.content.capacity();
+		}
+		entry.linkAfter(head);
+		cachedBytes += cached.capacity();
+
+		while (cachedBytes > capacity && head.prev != head) {
+			Entry eldest = head.prev;
+			eldest.unlink();
+			cache.remove(eldest.fileId, eldest.chunkNo);
+			cachedBytes -= eldest.content.capacity();
+			evicted.incrementAndGet();
+		}
+
+		return cached;
+	}
+
+	/**
+	 * Drops a chunk the backend has just written or removed, and keeps the
+	 * reads that began before from caching it.
+	 */
+	private synchronized void changed(String fileId, int chunkNo) {
+		generation++;
+		invalidate(fileId, chunkNo);
+	}
+
+	private void invalidate(String fileId, int chunkNo) {
+		Entry previous = cache.remove(fileId, chunkNo);
+		if (previous != null) {
+			previous.unlink();
+			cachedBytes -= previous.content.capacity();
+		}
+	}
+
+	/**
+	 * A cached chunk, linked in the recency list.
+	 */
+	private static final class Entry {
+		final String fileId;
+		final int chunkNo;
+		final ByteBuffer content;
+		Entry prev = this;
+		Entry next = this;
+
+		Entry(String fileId, int chunkNo, ByteBuffer content) {
+			this.fileId = fileId;
+			this.chunkNo = chunkNo;
+			this.content = content;
+		}
+
+		void linkAfter(Entry entry) {
+			prev = entry;
+			next = entry.next;
+			next.prev = this;
+			entry.next = this;
+		}
+
+		void unlink() {
+			prev.next = next;
+			next.prev = prev;
+			prev = next = this;
+		}
+	}
+}
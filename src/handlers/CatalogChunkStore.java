@@ -0,0 +1,178 @@
+package handlers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import interfaces.Chunk;
+
+/**
+ * Chunk store that keeps a ChunkCatalog in step with another store. Lookups,
+ * listings and whole file deletes are answered from the catalog, so they do
+ * not depend on how the backend lays out its chunks; only reads and writes of
+ * content reach the backend.
+ *
+ * Writes and removals of a chunk hold one of STRIPES locks, picked by (fileId,
+ * chunkNo), so the catalog and the backend agree on every chunk while
+ * different chunks are stored and removed at the same time.
+ */
+public class CatalogChunkStore implements ChunkStore, McHandler.StoredListener {
+	private static final int STRIPES = 64;
+
+	private final ChunkStore backend;
+	private final ChunkCatalog catalog;
+	private final Object[] locks = new Object[STRIPES];
+	private volatile McHandler mcHandler;
+
+	/**
+	 * Loads the catalog. A new catalog is filled from the chunks the backend
+	 * already holds and can give the real fileId of; the others are left out
+	 * by backend.list(), since under any other key GETCHUNK, DELETE and
+	 * REMOVED would never find them.
+	 *
+	 * @param backend
+	 *            Store of the chunk content
+	 * @param catalog
+	 *            Catalog to keep
+	 * @throws IOException
+	 */
+	public CatalogChunkStore(ChunkStore backend, ChunkCatalog catalog) throws IOException {
+		this.backend = backend;
+		this.catalog = catalog;
+		for (int i = 0; i < STRIPES; i++)
+			locks[i] = new Object();
+
+		if (!catalog.load()) {
+			List<StoredChunk> chunks = backend.list();
+
+			for (StoredChunk chunk : chunks)
+				catalog.put(chunk);
+			if (!chunks.isEmpty())
+				System.out.println("Chunk catalog filled with " + chunks.size() + " chunks from " + backend + ".");
+		}
+	}
+
+	/**
+	 * Follows the STORED and REMOVED messages seen by mcHandler to keep the
+	 * perceived degrees up to date.
+	 */
+	public void track(McHandler mcHandler) {
+		this.mcHandler = mcHandler;
+		mcHandler.addStoredListener(this);
+	}
+
+	/**
+	 * @return The catalog of the stored chunks
+	 */
+	public ChunkCatalog getCatalog() {
+		return catalog;
+	}
+
+	@Override
+	public boolean put(Chunk chunk) throws IOException {
+		synchronized (lock(chunk.getFileId(), chunk.getChunkNumber())) {
+			if (!backend.put(chunk))
+				return false;
+
+			catalog.put(new StoredChunk(chunk.getFileId(), chunk.getChunkNumber(), chunk.getSize(),
+					chunk.getReplicationDegree(), 1, System.currentTimeMillis()));
+		}
+		seenStored(chunk.getFileId(), chunk.getChunkNumber());
+		return true;
+	}
+
+	@Override
+	public boolean putReference(String fileId, int chunkNo, int replicationDegree, String fingerprint)
+			throws IOException {
+		synchronized (lock(fileId, chunkNo)) {
+			if (!backend.putReference(fileId, chunkNo, replicationDegree, fingerprint))
+				return false;
+			if (catalog.get(fileId, chunkNo) != null)
+				return true;
+
+			catalog.put(new StoredChunk(fileId, chunkNo, backend.size(fileId, chunkNo), replicationDegree, 1,
+					System.currentTimeMillis()));
+		}
+		seenStored(fileId, chunkNo);
+		return true;
+	}
+
+	@Override
+	public ByteBuffer get(String fileId, int chunkNo) throws IOException {
+		return catalog.get(fileId, chunkNo) == null ? null : backend.get(fileId, chunkNo);
+	}
+
+	@Override
+	public boolean contains(String fileId, int chunkNo) {
+		return catalog.get(fileId, chunkNo) != null;
+	}
+
+	@Override
+	public long size(String fileId, int chunkNo) {
+		StoredChunk chunk = catalog.get(fileId, chunkNo);
+		return chunk == null ? -1 : chunk.getSize();
+	}
+
+	@Override
+	public boolean remove(String fileId, int chunkNo) throws IOException {
+		synchronized (lock(fileId, chunkNo)) {
+			if (catalog.remove(fileId, chunkNo) == null)
+				return false;
+
+			backend.remove(fileId, chunkNo);
+			return true;
+		}
+	}
+
+	@Override
+	public int removeFile(String fileId) throws IOException {
+		int removed = 0;
+
+		for (StoredChunk chunk : catalog.getFile(fileId))
+			if (remove(fileId, chunk.getChunkNo()))
+				removed++;
+		return removed;
+	}
+
+	@Override
+	public List<StoredChunk> list() {
+		return catalog.list();
+	}
+
+	/**
+	 * Keeps the perceived degree of the chunks stored here up to date. The
+	 * degree counts the other peers that sent STORED, plus this one.
+	 */
+	@Override
+	public void stored(String fileId, int chunkNo, int replicationDeg) {
+		try {
+			catalog.setPerceivedDegree(fileId, chunkNo, replicationDeg + 1);
+		} catch (IOException e) {
+			System.err.println("Failed to write the chunk catalog.");
+		}
+	}
+
+	/**
+	 * Counts the STORED messages that arrived before the chunk was stored here.
+	 */
+	private void seenStored(String fileId, int chunkNo) {
+		if (mcHandler != null)
+			stored(fileId, chunkNo, mcHandler.getStoredCount(fileId, chunkNo));
+	}
+
+	private Object lock(String fileId, int chunkNo) {
+		int h = fileId.hashCode() * 31 + chunkNo;
+		return locks[(h ^ (h >>> 16)) & (STRIPES - 1)];
+	}
+
+	@Override
+	public void close() throws IOException {
+		catalog.close();
+		backend.close();
+	}
+
+	@Override
+	public String toString() {
+		return catalog.getCount() + " chunks, " + catalog.getUsedBytes() + " bytes, " + backend;
+	}
+}
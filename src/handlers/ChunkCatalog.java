@@ -0,0 +1,306 @@
+package handlers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Catalog of the chunks stored by this peer: size, fileId, chunkNo, desired
+ * and perceived replication degree and store time of each one, indexed by
+ * file, with a running total of the bytes used. Files are kept in fileId
+ * order, so the catalog can be read a page at a time from any chunk on.
+ *
+ * Every change is appended to a journal. When the journal grows past twice the
+ * number of chunks, the whole catalog is written to a snapshot and the journal
+ * is emptied. At startup the snapshot is read and the journal replayed; a
+ * torn record at the end of the journal is ignored.
+ */
+public class ChunkCatalog {
+	private static final int SNAPSHOT_MAGIC = 0x43415431;
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	private static final byte DEGREE = 3;
+	private static final int MIN_JOURNAL = 1024;
+
+	private final Path snapshot;
+	private final Path journal;
+	private final TreeMap<String, TreeMap<Integer, StoredChunk>> byFile = //
+			new TreeMap<String, TreeMap<Integer, StoredChunk>>();
+	private int count = 0;
+	private long usedBytes = 0;
+	private int journalRecords = 0;
+	private DataOutputStream journalOut;
+
+	/**
+	 * @param dir
+	 *            Directory of the snapshot and journal files
+	 */
+	public ChunkCatalog(Path dir) {
+		this.snapshot = dir.resolve("catalog.snapshot");
+		this.journal = dir.resolve("catalog.journal");
+	}
+
+	/**
+	 * Reads the snapshot and replays the journal.
+	 *
+	 * @return false if neither exists, i.e. the catalog is new
+	 * @throws IOException
+	 */
+	public synchronized boolean load() throws IOException {
+		boolean existed = Files.exists(snapshot) || Files.exists(journal);
+
+		if (Files.exists(snapshot))
+			try (DataInputStream in = open(snapshot)) {
+				if (in.readInt() != SNAPSHOT_MAGIC)
+					throw new IOException("Not a chunk catalog snapshot: " + snapshot);
+				for (int n = in.readInt(); n > 0; n--)
+					add(readChunk(in));
+			}
+
+		if (Files.exists(journal))
+			try (DataInputStream in = open(journal)) {
+				while (true) {
+					byte op = in.readByte();
+					if (op == PUT)
+						add(readChunk(in));
+					else if (op == REMOVE)
+						delete(in.readUTF(), in.readInt());
+					else if (op == DEGREE) {
+						StoredChunk chunk = get(in.readUTF(), in.readInt());
+						int degree = in.readInt();
+						if (chunk != null)
+							chunk.setPerceivedDegree(degree);
+					} else
+						break;
+					journalRecords++;
+				}
+			} catch (EOFException e) {
+				// torn or complete end of the journal
+			}
+
+		compact();
+		return existed;
+	}
+
+	/**
+	 * Records a stored chunk.
+	 */
+	public synchronized void put(StoredChunk chunk) throws IOException {
+		delete(chunk.getFileId(), chunk.getChunkNo());
+		add(chunk);
+
+		journal().writeByte(PUT);
+		writeChunk(journalOut, chunk);
+		logged();
+	}
+
+	/**
+	 * Forgets a chunk.
+	 *
+	 * @return The chunk that was removed, or null
+	 */
+	public synchronized StoredChunk remove(String fileId, int chunkNo) throws IOException {
+		StoredChunk chunk = delete(fileId, chunkNo);
+
+		if (chunk != null) {
+			journal().writeByte(REMOVE);
+			journalOut.writeUTF(fileId);
+			journalOut.writeInt(chunkNo);
+			logged();
+		}
+
+		return chunk;
+	}
+
+	/**
+	 * Updates the number of peers known to store a chunk, if it is stored here.
+	 */
+	public synchronized void setPerceivedDegree(String fileId, int chunkNo, int degree) throws IOException {
+		StoredChunk chunk = get(fileId, chunkNo);
+
+		if (chunk != null && chunk.getPerceivedDegree() != degree) {
+			chunk.setPerceivedDegree(degree);
+			journal().writeByte(DEGREE);
+			journalOut.writeUTF(fileId);
+			journalOut.writeInt(chunkNo);
+			journalOut.writeInt(degree);
+			logged();
+		}
+	}
+
+	public synchronized StoredChunk get(String fileId, int chunkNo) {
+		TreeMap<Integer, StoredChunk> chunks = byFile.get(fileId);
+		return chunks == null ? null : chunks.get(chunkNo);
+	}
+
+	/**
+	 * @return The chunks of a file, by chunkNo
+	 */
+	public synchronized Collection<StoredChunk> getFile(String fileId) {
+		TreeMap<Integer, StoredChunk> chunks = byFile.get(fileId);
+		return chunks == null ? Collections.<StoredChunk>emptyList() : new ArrayList<StoredChunk>(chunks.values());
+	}
+
+	/**
+	 * @return Every chunk, grouped by file
+	 */
+	public synchronized List<StoredChunk> list() {
+		List<StoredChunk> all = new ArrayList<StoredChunk>(count);
+		for (TreeMap<Integer, StoredChunk> chunks : byFile.values())
+			all.addAll(chunks.values());
+		return all;
+	}
+
+	/**
+	 * Reads the catalog a page at a time, in fileId and chunkNo order. Finding
+	 * the start costs a lookup, not a scan, so every page is as fast as the
+	 * first one.
+	 *
+	 * @param afterFileId
+	 *            File of the last chunk of the previous page, or null to start
+	 *            from the first chunk
+	 * @param afterChunkNo
+	 *            Number of the last chunk of the previous page
+	 * @param limit
+	 *            Maximum number of chunks returned
+	 * @return The chunks after the given one
+	 */
+	public synchronized List<StoredChunk> page(String afterFileId, int afterChunkNo, int limit) {
+		List<StoredChunk> page = new ArrayList<StoredChunk>(Math.min(limit, count));
+		NavigableMap<String, TreeMap<Integer, StoredChunk>> files = afterFileId == null ? byFile
+				: byFile.tailMap(afterFileId, true);
+
+		for (Map.Entry<String, TreeMap<Integer, StoredChunk>> file : files.entrySet()) {
+			SortedMap<Integer, StoredChunk> chunks = file.getKey().equals(afterFileId)
+					? file.getValue().tailMap(afterChunkNo, false) : file.getValue();
+
+			for (StoredChunk chunk : chunks.values()) {
+				if (page.size() == limit)
+					return page;
+				page.add(chunk);
+			}
+		}
+
+		return page;
+	}
+
+	public synchronized int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return Sum of the sizes of the stored chunks
+	 */
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	/**
+	 * Closes the journal.
+	 */
+	public synchronized void close() throws IOException {
+		if (journalOut != null)
+			journalOut.close();
+		journalOut = null;
+	}
+
+	private void add(StoredChunk chunk) {
+		StoredChunk previous = byFile.computeIfAbsent(chunk.getFileId(), k -> new TreeMap<Integer, StoredChunk>())
+				.put(chunk.getChunkNo(), chunk);
+
+		if (previous != null)
+			usedBytes -= previous.getSize();
+		else
+			count++;
+		usedBytes += chunk.getSize();
+	}
+
+	private StoredChunk delete(String fileId, int chunkNo) {
+		TreeMap<Integer, StoredChunk> chunks = byFile.get(fileId);
+		if (chunks == null)
+			return null;
+
+		StoredChunk chunk = chunks.remove(chunkNo);
+		if (chunks.isEmpty())
+			byFile.remove(fileId);
+		if (chunk != null) {
+			count--;
+			usedBytes -= chunk.getSize();
+		}
+
+		return chunk;
+	}
+
+	private DataOutputStream journal() throws IOException {
+		if (journalOut == null) {
+			Files.createDirectories(journal.getParent());
+			journalOut = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(journal.toFile(), true)));
+		}
+		return journalOut;
+	}
+
+	private void logged() throws IOException {
+		journalOut.flush();
+		if (++journalRecords > Math.max(MIN_JOURNAL, 2 * count))
+			compact();
+	}
+
+	/**
+	 * Writes the catalog to a new snapshot and empties the journal.
+	 */
+	private void compact() throws IOException {
+		if (journalRecords == 0 && !Files.exists(journal))
+			return;
+
+		close();
+		Files.createDirectories(snapshot.getParent());
+		Path tmp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp.toFile())))) {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(count);
+			for (TreeMap<Integer, StoredChunk> chunks : byFile.values())
+				for (StoredChunk chunk : chunks.values())
+					writeChunk(out, chunk);
+		}
+
+		Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		Files.deleteIfExists(journal);
+		journalRecords = 0;
+	}
+
+	private static DataInputStream open(Path file) throws IOException {
+		return new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+	}
+
+	private static StoredChunk readChunk(DataInputStream in) throws IOException {
+		return new StoredChunk(in.readUTF(), in.readInt(), in.readLong(), in.readInt(), in.readInt(),
+				in.readLong());
+	}
+
+	private static void writeChunk(DataOutputStream out, StoredChunk chunk) throws IOException {
+		out.writeUTF(chunk.getFileId());
+		out.writeInt(chunk.getChunkNo());
+		out.writeLong(chunk.getSize());
+		out.writeInt(chunk.getDesiredDegree());
+		out.writeInt(chunk.getPerceivedDegree());
+		out.writeLong(chunk.getStoredAt());
+	}
+}
@@ -0,0 +1,84 @@
+package handlers;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Fixed width, 256 bit digests of fileIds, as the keys of a ChunkKeyMap.
+ *
+ * A fileId in the protocol's form, 64 lowercase hex characters, is its own
+ * digest and is parsed into four longs without allocating. Any other string is
+ * hashed with SHA-256; the map keeps its text, so it can still be given back.
+ */
+final class ChunkKey {
+	static final int WORDS = 4;
+	private static final int HEX_LENGTH = WORDS * 16;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	private ChunkKey() {
+	}
+
+	/**
+	 * Writes the digest of a fileId to words[0..3].
+	 *
+	 * @return true if the fileId was parsed as hex, false if it was hashed
+	 */
+	static boolean digest(String fileId, long[] words) {
+		if (isHex(fileId)) {
+			for (int w = 0; w < WORDS; w++) {
+				long word = 0;
+				for (int i = w * 16; i < w * 16 + 16; i++)
+					word = word << 4 | Character.digit(fileId.charAt(i), 16);
+				words[w] = word;
+			}
+			return true;
+		}
+
+		ByteBuffer digest = ByteBuffer.wrap(SHA256.get().digest(fileId.getBytes(StandardCharsets.UTF_8)));
+		for (int w = 0; w < WORDS; w++)
+			words[w] = digest.getLong();
+		return false;
+	}
+
+	/**
+	 * @return The hex fileId of a digest
+	 */
+	static String fileId(long[] words) {
+		char[] hex = new char[HEX_LENGTH];
+
+		for (int w = 0; w < WORDS; w++)
+			for (int i = 0; i < 16; i++)
+				hex[w * 16 + i] = HEX[(int) (words[w] >>> (60 - 4 * i)) & 0xF];
+		return new String(hex);
+	}
+
+	/**
+	 * Hash of a key. The digest is already uniform, so its first word is
+	 * enough.
+	 */
+	static int hash(long d0, int chunkNo) {
+		long h = (d0 ^ chunkNo) * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private static boolean isHex(String fileId) {
+		if (fileId.length() != HEX_LENGTH)
+			return false;
+
+		for (int i = 0; i < HEX_LENGTH; i++) {
+			char c = fileId.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f'))
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,273 @@
+package handlers;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Map from chunk to value, keyed by the ChunkKey digest of the fileId and the
+ * chunkNo and stored flat: the digest words, chunkNos and values live in
+ * parallel arrays, probed linearly, so a lookup allocates nothing and a slot
+ * holds 36 bytes of key besides the reference to its value. Removal shifts the
+ * following entries back instead of leaving tombstones.
+ *
+ * The chunkNos of each file are also kept in a list of their own, and every
+ * slot holds the position of its chunkNo in that list, so chunkNumbers() costs
+ * the number of chunks of the file rather than the capacity of the map.
+ *
+ * Values may not be null. Not thread safe: like a HashMap, callers
+ * synchronize. Lookups reuse a scratch digest owned by the map.
+ */
+public class ChunkKeyMap<V> {
+	private static final int WORDS = ChunkKey.WORDS;
+	private static final float LOAD_FACTOR = 0.6f;
+
+	/**
+	 * Receives the entries of the map.
+	 */
+	public interface Visitor<V> {
+		void visit(String fileId, int chunkNo, V value);
+	}
+
+	private final long[] scratch = new long[WORDS];
+	private long[] words;
+	private int[] chunkNos;
+	private Object[] values;
+	/**
+	 * Text of the fileIds that are not hex, null for the others.
+	 */
+	private String[] names;
+	/**
+	 * Position of the chunkNo of each slot in the list of its file.
+	 */
+	private int[] positions;
+	private final Map<String, FileChunks> files = new HashMap<String, FileChunks>();
+	private int size = 0;
+	private int mask;
+	private int resizeAt;
+
+	public ChunkKeyMap() {
+		this(16);
+	}
+
+	/**
+	 * @param expected
+	 *            Number of entries the map should hold without growing
+	 */
+	public ChunkKeyMap(int expected) {
+		allocate(Integer.highestOneBit(Math.max(4, (int) (expected / LOAD_FACTOR)) - 1) << 1);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public V get(String fileId, int chunkNo) {
+		int slot = find(fileId, chunkNo);
+		return slot < 0 ? null : value(slot);
+	}
+
+	public boolean containsKey(String fileId, int chunkNo) {
+		return find(fileId, chunkNo) >= 0;
+	}
+
+	/**
+	 * @return The previous value, or null
+	 */
+	public V put(String fileId, int chunkNo, V value) {
+		if (value == null)
+			throw new NullPointerException("ChunkKeyMap does not take null values");
+
+		boolean hex = ChunkKey.digest(fileId, scratch);
+		int slot = ChunkKey.hash(scratch[0], chunkNo) & mask;
+
+		while (values[slot] != null) {
+			if (matches(slot, scratch, chunkNo)) {
+				V previous = value(slot);
+				values[slot] = value;
+				return previous;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		System.arraycopy(scratch, 0, words, slot * WORDS, WORDS);
+		chunkNos[slot] = chunkNo;
+		values[slot] = value;
+		names[slot] = hex ? null : fileId;
+		positions[slot] = files.computeIfAbsent(fileId, f -> new FileChunks()).add(chunkNo);
+
+		if (++size > resizeAt)
+			allocate(values.length << 1);
+		return null;
+	}
+
+	/**
+	 * @return The value removed, or null
+	 */
+	public V remove(String fileId, int chunkNo) {
+		int slot = find(fileId, chunkNo);
+		if (slot < 0)
+			return null;
+
+		V previous = value(slot);
+		int position = positions[slot];
+		delete(slot);
+
+		FileChunks file = files.get(fileId);
+		int moved = file.remove(position);
+		if (moved != position)
+			positions[find(fileId, file.numbers[position])] = position;
+		if (file.count == 0)
+			files.remove(fileId);
+		return previous;
+	}
+
+	/**
+	 * @return The chunkNos stored for a file, in no particular order
+	 */
+	public int[] chunkNumbers(String fileId) {
+		FileChunks file = files.get(fileId);
+		return file == null ? new int[0] : Arrays.copyOf(file.numbers, file.count);
+	}
+
+	public void forEach(Visitor<? super V> visitor) {
+		for (int slot = 0; slot < values.length; slot++)
+			if (values[slot] != null)
+				visitor.visit(fileId(slot), chunkNos[slot], value(slot));
+	}
+
+	public void clear() {
+		Arrays.fill(values, null);
+		Arrays.fill(names, null);
+		files.clear();
+		size = 0;
+	}
+
+	private int find(String fileId, int chunkNo) {
+		ChunkKey.digest(fileId, scratch);
+		int slot = ChunkKey.hash(scratch[0], chunkNo) & mask;
+
+		while (values[slot] != null) {
+			if (matches(slot, scratch, chunkNo))
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private boolean matches(int slot, long[] digest, int chunkNo) {
+		return chunkNos[slot] == chunkNo && sameFile(slot, digest);
+	}
+
+	private boolean sameFile(int slot, long[] digest) {
+		int base = slot * WORDS;
+		return words[base] == digest[0] && words[base + 1] == digest[1] && words[base + 2] == digest[2]
+				&& words[base + 3] == digest[3];
+	}
+
+	/**
+	 * Empties a slot and moves back the entries after it that would no longer
+	 * be found.
+	 */
+	private void delete(int slot) {
+		int gap = slot;
+
+		for (int next = (gap + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+			int home = ChunkKey.hash(words[next * WORDS], chunkNos[next]) & mask;
+
+			if (((next - home) & mask) >= ((next - gap) & mask)) {
+				move(next, gap);
+				gap = next;
+			}
+		}
+
+		values[gap] = null;
+		names[gap] = null;
+		size--;
+	}
+
+	private void move(int from, int to) {
+		System.arraycopy(words, from * WORDS, words, to * WORDS, WORDS);
+		chunkNos[to] = chunkNos[from];
+		values[to] = values[from];
+		names[to] = names[from];
+		positions[to] = positions[from];
+	}
+
+	private String fileId(int slot) {
+		if (names[slot] != null)
+			return names[slot];
+		return ChunkKey.fileId(Arrays.copyOfRange(words, slot * WORDS, slot * WORDS + WORDS));
+	}
+
+	@SuppressWarnings("unchecked")
+	private V value(int slot) {
+		return (V) values[slot];
+	}
+
+	private void allocate(int capacity) {
+		long[] oldWords = words;
+		int[] oldChunkNos = chunkNos;
+		Object[] oldValues = values;
+		String[] oldNames = names;
+		int[] oldPositions = positions;
+
+		words = new long[capacity * WORDS];
+		chunkNos = new int[capacity];
+		values = new Object[capacity];
+		names = new String[capacity];
+		positions = new int[capacity];
+		mask = capacity - 1;
+		resizeAt = (int) (capacity * LOAD_FACTOR);
+
+		if (oldValues == null)
+			return;
+
+		for (int from = 0; from < oldValues.length; from++) {
+			if (oldValues[from] == null)
+				continue;
+
+			int slot = ChunkKey.hash(oldWords[from * WORDS], oldChunkNos[from]) & mask;
+			while (values[slot] != null)
+				slot = (slot + 1) & mask;
+
+			System.arraycopy(oldWords, from * WORDS, words, slot * WORDS, WORDS);
+			chunkNos[slot] = oldChunkNos[from];
+			values[slot] = oldValues[from];
+			names[slot] = oldNames[from];
+			positions[slot] = oldPositions[from];
+		}
+	}
+
+	/**
+	 * The chunkNos of one file, in no particular order.
+	 */
+	private static final class FileChunks {
+		int[] numbers = new int[4];
+		int count = 0;
+
+		/**
+		 * @return Position of chunkNo in the list
+		 */
+		int add(int chunkNo) {
+			if (count == numbers.length)
+				numbers = Arrays.copyOf(numbers, count * 2);
+			numbers[count] = chunkNo;
+			return count++;
+		}
+
+		/**
+		 * Removes the chunkNo at a position, moving the last one into its place.
+		 *
+		 * @return Former position of the chunkNo now at position
+		 */
+		int remove(int position) {
+			numbers[position] = numbers[--count];
+			return count;
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package handlers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import interfaces.Chunk;
+
+/**
+ * Storage of the chunks this peer keeps for other peers. Implementations must
+ * be safe to use from several handler threads.
+ */
+public interface ChunkStore extends Closeable {
+	/**
+	 * Stores a chunk.
+	 * 
+	 * @param chunk
+	 *            Chunk to store
+	 * @return false if the chunk was already stored
+	 * @throws IOException
+	 */
+	boolean put(Chunk chunk) throws IOException;
+
+	/**
+	 * Stores a chunk whose content is already held by the store under another
+	 * chunk, given only the content fingerprint.
+	 * 
+	 * @param fileId
+	 *            File of the chunk
+	 * @param chunkNo
+	 *            Number of the chunk
+	 * @param replicationDegree
+	 *            Desired replication degree of the chunk
+	 * @param fingerprint
+	 *            SHA-256 of the content, in hex
+	 * @return false if no stored chunk has that content
+	 * @throws IOException
+	 */
+	boolean putReference(String fileId, int chunkNo, int replicationDegree, String fingerprint)
+			throws IOException;
+
+	/**
+	 * @return Content of the chunk, or null if it is not stored
+	 * @throws IOException
+	 */
+	ByteBuffer get(String fileId, int chunkNo) throws IOException;
+
+	/**
+	 * @return true if the chunk is stored
+	 */
+	boolean contains(String fileId, int chunkNo);
+
+	/**
+	 * @return Size of the chunk in bytes, or -1 if it is not stored
+	 * @throws IOException
+	 */
+	long size(String fileId, int chunkNo) throws IOException;
+
+	/**
+	 * Removes one chunk.
+	 * 
+	 * @return false if it was not stored
+	 * @throws IOException
+	 */
+	boolean remove(String fileId, int chunkNo) throws IOException;
+
+	/**
+	 * Removes every chunk of a file.
+	 * 
+	 * @return Number of chunks removed
+	 * @throws IOException
+	 */
+	int removeFile(String fileId) throws IOException;
+
+	/**
+	 * @return Every stored chunk, under its real fileId. Chunks whose fileId
+	 *         cannot be recovered are left out.
+	 * @throws IOException
+	 */
+	List<StoredChunk> list() throws IOException;
+}
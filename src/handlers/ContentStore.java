@@ -0,0 +1,330 @@
+package handlers;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import interfaces.Chunk;
+
+/**
+ * Content addressed store shared by the chunk files of this peer.
+ * 
+ * Every distinct chunk payload is written once, to dir/fingerprint, and each
+ * chunk file is a hard link to it. On file systems without hard links chunks
+ * are written as plain copies.
+ * 
+ * The fingerprint of each chunk file is kept in a reference index, an append
+ * only log in dir/index that is replayed on first use, so deleting a chunk
+ * never reads its content back. A chunk file missing from the index, stored
+ * before it existed or lost with the tail of the log, is hashed instead. The
+ * index also counts the chunk files of each content file, which is deleted
+ * with the last of them; link counts are not used, as not every platform
+ * with hard links reports them. A chunk file left out of the count keeps its
+ * content through its own link, so at worst that content is stored again.
+ * 
+ * Each content file is created, linked and deleted holding one of STRIPES
+ * locks, picked by its fingerprint, so chunks of different content are stored
+ * at the same time. The reference index is guarded by its map.
+ */
+public class ContentStore {
+	private static final String INDEX = "index";
+	private static final int STRIPES = 64;
+
+	private final Path dir;
+	private final Object[] locks = new Object[STRIPES];
+	private final Map<String, String> references = new HashMap<String, String>();
+	private final Map<String, Integer> counts = new HashMap<String, Integer>();
+	private BufferedWriter index;
+	private int logged = 0;
+	private volatile boolean links = true;
+	private final AtomicLong stored = new AtomicLong();
+	private final AtomicLong shared = new AtomicLong();
+
+	/**
+	 * @param dir
+	 *            Directory of the content files
+	 */
+	public ContentStore(Path dir) {
+		this.dir = dir;
+		for (int i = 0; i < STRIPES; i++)
+			locks[i] = new Object();
+	}
+
+	/**
+	 * Creates target with the content of the chunk, sharing the content file if
+	 * the same payload was already stored.
+	 * 
+	 * @param target
+	 *            Chunk file to create
+	 * @param chunk
+	 *            Chunk to store
+	 * @throws FileAlreadyExistsException
+	 *             If target already exists
+	 * @throws IOException
+	 */
+	public void store(Path target, Chunk chunk) throws IOException {
+		Files.createDirectories(target.getParent());
+		if (Files.exists(target))
+			throw new FileAlreadyExistsException(target.toString());
+
+		if (links) {
+			String fingerprint = MessageCodec.hex(chunk.getFingerprint());
+			Path content = contentFile(fingerprint);
+			boolean linked;
+
+			synchronized (lock(fingerprint)) {
+				if (Files.exists(content))
+					shared.incrementAndGet();
+				else
+					write(content, chunk.getBuffer());
+
+				try {
+					Files.createLink(target, content);
+					reference(target, fingerprint);
+					linked = true;
+				} catch (UnsupportedOperationException e) {
+					links = false;
+					linked = false;
+					Files.deleteIfExists(content);
+				}
+			}
+
+			if (linked) {
+				stored.incrementAndGet();
+				return;
+			}
+		}
+
+		write(target, chunk.getBuffer());
+		stored.incrementAndGet();
+	}
+
+	/**
+	 * Creates target as a link to content that is already stored.
+	 * 
+	 * @param target
+	 *            Chunk file to create
+	 * @param fingerprint
+	 *            Fingerprint of the content, in hex
+	 * @return false if the content is not in the store
+	 * @throws IOException
+	 */
+	public boolean link(Path target, String fingerprint) throws IOException {
+		if (!links || !MessageCodec.isDigest(fingerprint))
+			return false;
+
+		Path content = contentFile(fingerprint);
+
+		Files.createDirectories(target.getParent());
+		synchronized (lock(fingerprint)) {
+			if (!Files.exists(content))
+				return false;
+
+			if (!Files.exists(target)) {
+				Files.createLink(target, content);
+				reference(target, fingerprint);
+			}
+		}
+
+		stored.incrementAndGet();
+		shared.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Deletes a chunk file, and its content file if no other chunk uses it.
+	 * 
+	 * @param chunkFile
+	 *            Chunk file to delete
+	 * @throws IOException
+	 */
+	public void release(Path chunkFile) throws IOException {
+		if (!links) {
+			Files.deleteIfExists(chunkFile);
+			return;
+		}
+
+		String fingerprint;
+		synchronized (references) {
+			openIndex();
+			fingerprint = references.get(chunkFile.toString());
+		}
+		if (fingerprint == null)
+			fingerprint = MessageCodec.hex(Chunk.fingerprint(ByteBuffer.wrap(Files.readAllBytes(chunkFile))));
+
+		synchronized (lock(fingerprint)) {
+			dereference(chunkFile);
+			Files.delete(chunkFile);
+
+			if (!isReferenced(fingerprint))
+				Files.deleteIfExists(contentFile(fingerprint));
+		}
+	}
+
+	/**
+	 * @return Number of chunks stored
+	 */
+	public long getStored() {
+		return stored.get();
+	}
+
+	/**
+	 * @return Number of chunks that reused content already on disk
+	 */
+	public long getShared() {
+		return shared.get();
+	}
+
+	private Path contentFile(String fingerprint) {
+		return dir.resolve(fingerprint);
+	}
+
+	private Object lock(String fingerprint) {
+		int h = fingerprint.hashCode();
+		return locks[(h ^ (h >>> 16)) & (STRIPES - 1)];
+	}
+
+	/**
+	 * Records the fingerprint of a new chunk file in the reference index. Called
+	 * holding the lock of the fingerprint.
+	 */
+	private void reference(Path chunkFile, String fingerprint) throws IOException {
+		synchronized (references) {
+			openIndex();
+			put(chunkFile.toString(), fingerprint);
+			log("+ " + fingerprint + " " + chunkFile);
+		}
+	}
+
+	/**
+	 * Takes a chunk file out of the reference index. Called holding the lock
+	 * of its fingerprint.
+	 */
+	private void dereference(Path chunkFile) throws IOException {
+		synchronized (references) {
+			openIndex();
+			if (remove(chunkFile.toString()) != null)
+				log("- " + chunkFile);
+		}
+	}
+
+	/**
+	 * @return true if a chunk file in the reference index uses the content
+	 */
+	private boolean isReferenced(String fingerprint) {
+		synchronized (references) {
+			return counts.containsKey(fingerprint);
+		}
+	}
+
+	private void put(String chunkFile, String fingerprint) {
+		String previous = references.put(chunkFile, fingerprint);
+		if (previous != null)
+			uncount(previous);
+		counts.merge(fingerprint, 1, Integer::sum);
+	}
+
+	private String remove(String chunkFile) {
+		String fingerprint = references.remove(chunkFile);
+		if (fingerprint != null)
+			uncount(fingerprint);
+		return fingerprint;
+	}
+
+	private void uncount(String fingerprint) {
+		counts.computeIfPresent(fingerprint, (f, count) -> count > 1 ? count - 1 : null);
+	}
+
+	/**
+	 * Replays the reference index on first use and opens it for appending.
+	 */
+	private void openIndex() throws IOException {
+		if (index != null)
+			return;
+
+		Path file = dir.resolve(INDEX);
+		Files.createDirectories(dir);
+		if (Files.exists(file)) {
+			for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+				if (line.startsWith("+ ") && line.indexOf(' ', 2) > 0) {
+					int space = line.indexOf(' ', 2);
+					put(line.substring(space + 1), line.substring(2, space));
+				} else if (line.startsWith("- "))
+					remove(line.substring(2));
+				logged++;
+			}
+		}
+
+		index = appendTo(file);
+	}
+
+	/**
+	 * Appends a line to the reference index, or rewrites it with only the live
+	 * references once it has more than twice as many lines.
+	 */
+	private void log(String line) throws IOException {
+		if (logged >= 2 * references.size() + 1024) {
+			rewriteIndex();
+			return;
+		}
+
+		index.write(line);
+		index.newLine();
+		index.flush();
+		logged++;
+	}
+
+	private void rewriteIndex() throws IOException {
+		Path file = dir.resolve(INDEX);
+		Path tmp = file.resolveSibling(INDEX + ".tmp");
+
+		index.close();
+		try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+			for (Map.Entry<String, String> reference : references.entrySet()) {
+				out.write("+ " + reference.getValue() + " " + reference.getKey());
+				out.newLine();
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		index = appendTo(file);
+		logged = references.size();
+	}
+
+	/**
+	 * Opens the index for appending through a FileOutputStream, which unlike a
+	 * FileChannel is not closed when the writing thread is interrupted.
+	 */
+	private static BufferedWriter appendTo(Path file) throws IOException {
+		return new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(file.toFile(), true), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Writes to a temporary file first, so a crash never leaves a truncated
+	 * content file that later chunks would link to.
+	 */
+	private void write(Path file, ByteBuffer data) throws IOException {
+		Files.createDirectories(file.getParent());
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+
+		try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (data.hasRemaining())
+				out.write(data);
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
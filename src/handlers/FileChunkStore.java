@@ -0,0 +1,234 @@
+package handlers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import interfaces.Chunk;
+
+/**
+ * Default chunk store: one file per chunk, dir/storageName(fileId).NNN, with
+ * identical content shared through a ContentStore.
+ * 
+ * The fileIds of this implementation are hex digests and name the files as
+ * they are. Other fileIds, such as the paths used by 1.0 peers, are derived
+ * with a one way hash, and the fileId is written next to the chunks in
+ * dir/storageName.id, until the whole file is deleted, so list() can give it
+ * back. Chunks with a hashed name and no such file, left by older versions,
+ * are skipped by list().
+ */
+public class FileChunkStore implements ChunkStore {
+	private static final String ID_SUFFIX = ".id";
+
+	/**
+	 * Storage names of the most recently used fileIds that are not digests, so
+	 * a burst of messages for the same file is hashed only once.
+	 */
+	private final Map<String, String> storageNames;
+	private final Path dir;
+	private final ContentStore content;
+
+	/**
+	 * @param dir
+	 *            Directory of the chunk files
+	 * @param content
+	 *            Store of the content shared by the chunk files
+	 * @param nameCacheSize
+	 *            Number of storage names kept in memory
+	 */
+	public FileChunkStore(Path dir, ContentStore content, int nameCacheSize) {
+		this.dir = dir;
+		this.content = content;
+		this.storageNames = Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > nameCacheSize;
+			}
+		});
+	}
+
+	@Override
+	public boolean put(Chunk chunk) throws IOException {
+		identify(chunk.getFileId());
+		try {
+			content.store(path(chunk.getFileId(), chunk.getChunkNumber()), chunk);
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public boolean putReference(String fileId, int chunkNo, int replicationDegree, String fingerprint)
+			throws IOException {
+		identify(fileId);
+		return content.link(path(fileId, chunkNo), fingerprint);
+	}
+
+	@Override
+	public ByteBuffer get(String fileId, int chunkNo) throws IOException {
+		Path path = path(fileId, chunkNo);
+
+		if (!Files.isRegularFile(path))
+			return null;
+		return ByteBuffer.wrap(Files.readAllBytes(path));
+	}
+
+	@Override
+	public boolean contains(String fileId, int chunkNo) {
+		return Files.isRegularFile(path(fileId, chunkNo));
+	}
+
+	@Override
+	public long size(String fileId, int chunkNo) throws IOException {
+		Path path = path(fileId, chunkNo);
+		return Files.isRegularFile(path) ? Files.size(path) : -1;
+	}
+
+	@Override
+	public boolean remove(String fileId, int chunkNo) throws IOException {
+		Path path = path(fileId, chunkNo);
+
+		if (!Files.isRegularFile(path))
+			return false;
+
+		content.release(path);
+		return true;
+	}
+
+	@Override
+	public int removeFile(String fileId) throws IOException {
+		int removed = 0;
+
+		if (!Files.isDirectory(dir))
+			return 0;
+
+		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(dir, storageName(fileId) + ".*")) {
+			for (Path file : directoryStream) {
+				if (file.getFileName().toString().endsWith(ID_SUFFIX))
+					Files.delete(file);
+				else {
+					content.release(file);
+					removed++;
+				}
+			}
+		}
+
+		return removed;
+	}
+
+	@Override
+	public List<StoredChunk> list() throws IOException {
+		List<StoredChunk> chunks = new ArrayList<StoredChunk>();
+
+		if (!Files.isDirectory(dir))
+			return chunks;
+
+		Map<String, String> fileIds = new HashMap<String, String>();
+		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(dir)) {
+			for (Path path : directoryStream) {
+				String name = path.getFileName().toString();
+				int dot = name.lastIndexOf('.');
+				int chunkNo;
+
+				if (dot <= 0)
+					continue;
+				try {
+					chunkNo = Integer.parseInt(name.substring(dot + 1));
+				} catch (NumberFormatException | IndexOutOfBoundsException e) {
+					continue;
+				}
+
+				String fileId = fileIds.computeIfAbsent(name.substring(0, dot), this::fileId);
+				if (!fileId.isEmpty())
+					chunks.add(new StoredChunk(fileId, chunkNo, Files.size(path)));
+			}
+		}
+
+		return chunks;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public String toString() {
+		return "files in " + dir + ", " + content.getStored() + " stored, " + content.getShared()
+				+ " sharing content";
+	}
+
+	/**
+	 * Writes the fileId next to its chunks if its storage name is a hash.
+	 */
+	private void identify(String fileId) throws IOException {
+		if (MessageCodec.isDigest(fileId))
+			return;
+
+		Path id = dir.resolve(storageName(fileId) + ID_SUFFIX);
+		if (!Files.exists(id)) {
+			Files.createDirectories(dir);
+			Files.write(id, fileId.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * @return The fileId of the chunks stored under name, or "" if it cannot
+	 *         be recovered
+	 */
+	private String fileId(String name) {
+		if (MessageCodec.isDigest(name))
+			return name;
+
+		try {
+			return new String(Files.readAllBytes(dir.resolve(name + ID_SUFFIX)), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			System.err.println("Unknown fileId of the chunks " + dir.resolve(name) + ".*, skipping them.");
+			return "";
+		}
+	}
+
+	private Path path(String fileId, int chunkNo) {
+		return dir.resolve(storageName(fileId) + "." + String.format("%03d", chunkNo));
+	}
+
+	/**
+	 * @return The fileId itself if it is a hex digest, which is already a valid
+	 *         file name, else the Base64 SHA-256 of the fileId with "/"
+	 *         replaced
+	 */
+	String storageName(String fileId) {
+		if (MessageCodec.isDigest(fileId))
+			return fileId;
+
+		String name = storageNames.get(fileId);
+		if (name != null)
+			return name;
+
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] hash = digest.digest(fileId.getBytes(StandardCharsets.UTF_8));
+			name = Base64.getEncoder().encodeToString(hash).replace("/", "blue");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+
+		storageNames.put(fileId, name);
+		return name;
+	}
+}
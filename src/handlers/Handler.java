@@ -1,17 +1,17 @@
 package handlers;
 
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Base64;
-import java.util.LinkedList;
-import java.util.Queue;
-
-public class Handler {
+import peer.Datagram;
+import peer.IngressQueue;
+import peer.MessageDispatcher;
+import peer.Peer;
+
+public abstract class Handler implements Runnable {
 	protected int PEER_ID;
-	protected Queue<byte[]> msgQueue = new LinkedList<byte[]>();
+	protected IngressQueue<Datagram> msgQueue;
+	private final MessageHeader header = new MessageHeader();
+	private MessageDispatcher dispatcher;
 
-	public Handler(Queue<byte[]> msgQueue, int id) {
+	public Handler(IngressQueue<Datagram> msgQueue, int id) {
 		this.msgQueue = msgQueue;
 		PEER_ID = id;
 	}
@@ -34,7 +34,7 @@ public class Handler {
 	/**
 	 * @return the msgQueue
 	 */
-	public Queue<byte[]> getMsgQueue() {
+	public IngressQueue<Datagram> getMsgQueue() {
 		return msgQueue;
 	}
 
@@ -42,20 +42,116 @@ public class Handler {
 	 * @param msgQueue
 	 *            the msgQueue to set
 	 */
-	public void setMsgQueue(Queue<byte[]> msgQueue) {
+	public void setMsgQueue(IngressQueue<Datagram> msgQueue) {
 		this.msgQueue = msgQueue;
 	}
 
-	protected String encrypt(String msg) {
-		String encrypt = msg;
+	/**
+	 * @return The dispatcher running the messages, or null if they run on the
+	 *         handler thread
+	 */
+	public MessageDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
+	/**
+	 * @param dispatcher
+	 *            Dispatcher to run the messages that name a chunk, or null to
+	 *            run every message on the handler thread
+	 */
+	public void setDispatcher(MessageDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+	}
+
+	/**
+	 * Parses the header of data into header and records its sender with the
+	 * version negotiator. The sender of a HELLO is recorded by the McHandler
+	 * with the versions it announces.
+	 * 
+	 * @param header
+	 *            Header to parse into
+	 * @param data
+	 *            Received message
+	 * @return true if the header is valid and its version is supported
+	 */
+	private boolean parseHeader(MessageHeader header, Datagram data) {
+		if (!header.parse(data.getData()))
+			return false;
+
+		VersionNegotiator negotiator = Peer.getNegotiator();
+		if (header.getSenderId() != PEER_ID && header.getType() != MessageType.HELLO)
+			negotiator.observe(header.getSenderId());
+
+		return negotiator.isSupported(header.getVersion());
+	}
+
+	/**
+	 * Analyses one message taken from the channel queue, whose header is valid
+	 * and of a supported version. The datagram is released when this returns,
+	 * so anything kept must be copied. With a dispatcher, messages about
+	 * different chunks are analysed at the same time.
+	 * 
+	 * @param msg
+	 *            Parsed header of the message
+	 * @param data
+	 *            Received message
+	 */
+	protected abstract void analyseMessage(MessageHeader msg, Datagram data);
+
+	/**
+	 * Blocks on the channel queue and analyses each message, without burning CPU
+	 * while the queue is empty.
+	 */
+	@Override
+	public void run() {
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				process(msgQueue.take());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Analyses every message already in the queue without blocking. Used by the
+	 * reactor workers instead of run().
+	 */
+	public void processPending() {
+		Datagram data;
+
+		while ((data = msgQueue.poll()) != null)
+			process(data);
+	}
+
+	/**
+	 * Parses a message and analyses it here or, if there is a dispatcher, hands
+	 * it to the dispatcher. A DELETE is dispatched as a message about its whole
+	 * file, so it runs after the messages about the file's chunks received
+	 * before it. HELLO names no file and stays on this thread.
+	 */
+	private void process(Datagram data) {
+		MessageHeader msg = dispatcher == null ? header : new MessageHeader();
+
+		if (!parseHeader(msg, data)) {
+			data.release();
+			return;
+		}
+
+		if (dispatcher == null || msg.getType() == MessageType.HELLO) {
+			analyse(msg, data);
+			return;
+		}
+
+		dispatcher.dispatch(msg.getFileId(), msg.getType().hasChunkNo() ? msg.getChunkNo() : -1,
+				() -> analyse(msg, data));
+	}
+
+	private void analyse(MessageHeader msg, Datagram data) {
 		try {
-			MessageDigest digest = MessageDigest.getInstance("SHA-256");
-			byte[] hash = digest.digest(msg.getBytes(StandardCharsets.UTF_8));
-			encrypt = Base64.getEncoder().encodeToString(hash);
-			encrypt = encrypt.replace("/", "blue");
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
+			analyseMessage(msg, data);
+		} finally {
+			data.release();
 		}
-		return encrypt;
 	}
 }
@@ -1,88 +1,143 @@
 package handlers;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.List;
-import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import interfaces.Chunk;
+import peer.Datagram;
+import peer.IngressQueue;
 import peer.Peer;
 
-public class McHandler extends Handler implements Runnable {
-	private String messageType = "";
-	private Queue<Chunk> chunksToSend = new LinkedList<Chunk>();
-	private Queue<Chunk> chunksToRetransmit = new LinkedList<Chunk>();
-	private Map<ChunkInfo, ArrayList<Integer>> storedMap = new HashMap<ChunkInfo, ArrayList<Integer>>();
+public class McHandler extends Handler {
+	/**
+	 * Atraso mximo, em ms, antes de responder a um GETCHUNK ou REMOVED.
+	 */
+	private static final long MAX_ANSWER_DELAY = 400;
+
+	private final ReplicationTracker replication;
+	private final SuppressionTracker suppression;
+	private List<StoredListener> storedListeners = new CopyOnWriteArrayList<StoredListener>();
+
+	/**
+	 * Recebe os eventos de STORED, no thread do McHandler ou, com um
+	 * MessageDispatcher, no thread que analisa a mensagem.
+	 */
+	public interface StoredListener {
+		/**
+		 * @param fileId
+		 *            Ficheiro do chunk
+		 * @param chunkNo
+		 *            Nmero do chunk
+		 * @param replicationDeg
+		 *            Nmero de peers que j guardaram o chunk
+		 */
+		void stored(String fileId, int chunkNo, int replicationDeg);
+	}
 
-	public McHandler(Queue<byte[]> msgQueue, int id) {
+	/**
+	 * @param msgQueue
+	 *            Fila de mensagens do MC
+	 * @param id
+	 *            Identificador deste peer
+	 * @param replication
+	 *            Registo dos peers que guardam cada chunk
+	 * @param suppression
+	 *            Agenda as respostas, que so canceladas se outro peer
+	 *            responder primeiro
+	 */
+	public McHandler(IngressQueue<Datagram> msgQueue, int id, ReplicationTracker replication,
+			SuppressionTracker suppression) {
 		super(msgQueue, id);
+		this.replication = replication;
+		this.suppression = suppression;
+	}
+
+	public void addStoredListener(StoredListener listener) {
+		storedListeners.add(listener);
+	}
+
+	public void removeStoredListener(StoredListener listener) {
+		storedListeners.remove(listener);
 	}
 
 	/**
-	 * Adiciona a mensagem de STORED  tree de mensagens Stored j recebidas.
+	 * Regista o peer que enviou STORED como tendo o chunk.
 	 * 
-	 * @param ci
-	 *            Mensagem recebida
+	 * @param fileId
+	 *            Ficheiro do chunk
+	 * @param chunkNo
+	 *            Nmero do chunk
 	 * @param senderId
 	 *            Peer que enviou a mensagem Stored
 	 */
-	private void addStoredChunk(ChunkInfo ci, int senderId) {
-		ArrayList<Integer> peersComChunk = new ArrayList<Integer>();
-
-		if (storedMap.containsKey(ci)) {
-			peersComChunk = storedMap.get(ci);
-			if (!peersComChunk.contains(senderId)) {
-				peersComChunk.add(senderId);
-				storedMap.put(ci, peersComChunk);
-			}
-		} else {
-			peersComChunk.add(senderId);
-			storedMap.put(ci, peersComChunk);
-		}
+	private void addStoredChunk(String fileId, int chunkNo, int senderId) {
+		int replicationDeg = replication.add(fileId, chunkNo, senderId);
+
+		if (replicationDeg >= 0)
+			for (StoredListener listener : storedListeners)
+				listener.stored(fileId, chunkNo, replicationDeg);
+	}
+
+	/**
+	 * Retira o peer que enviou REMOVED dos peers com o chunk.
+	 * 
+	 * @param fileId
+	 *            Ficheiro do chunk
+	 * @param chunkNo
+	 *            Nmero do chunk
+	 * @param senderId
+	 *            Peer que enviou a mensagem Removed
+	 */
+	private void removeStoredChunk(String fileId, int chunkNo, int senderId) {
+		int replicationDeg = replication.remove(fileId, chunkNo, senderId);
+
+		if (replicationDeg >= 0)
+			for (StoredListener listener : storedListeners)
+				listener.stored(fileId, chunkNo, replicationDeg);
 	}
 
 	/**
 	 * Analisa o cabealho da mensagem.
 	 * 
 	 * @param msg
-	 *            Mensagem recebida
+	 *            Cabealho recebido
 	 * @return true se o cabealho  vlido
 	 */
-	private boolean analyseHeader(String[] msg) {
-		return "1.0".equals(msg[1]) && PEER_ID != Integer.parseInt(msg[2]);
+	private boolean analyseHeader(MessageHeader msg) {
+		return PEER_ID != msg.getSenderId();
 	}
 
 	/**
-	 * Analisa todas as mensagens armazenadas vindas do MC.
+	 * Analisa uma mensagem vinda do MC.
 	 */
-	private void analyseMessages() {
-		if (!msgQueue.isEmpty()) {
-			byte[] data = msgQueue.poll();
-			String convert = new String(data, 0, data.length);
-			String[] msg = convert.substring(0, convert.indexOf("\r\n")).split("\\s");
-
-			if (checkMessageType(msg[0]) && analyseHeader(msg)) {
-				print(msg);
-				if ("STORED".equals(this.messageType)) {
-					ChunkInfo chunkinfo = new ChunkInfo(msg[3], Integer.parseInt(msg[4]));
-					addStoredChunk(chunkinfo, Integer.parseInt(msg[2]));
-				} else if ("DELETE".equals(this.messageType)) {
-					deleteFiles(msg[3]);
-				} else if ("GETCHUNK".equals(this.messageType)) {
-					searchChunk(data);
-				} else if ("REMOVED".equals(this.messageType)) {
-					int senderId = Integer.parseInt(msg[2]);
-					doIHave(msg[3], msg[4], senderId);
-				}
+	@Override
+	protected void analyseMessage(MessageHeader msg, Datagram datagram) {
+		if (checkMessageType(msg.getType()) && analyseHeader(msg)) {
+			print(msg);
+			switch (msg.getType()) {
+			case STORED:
+				addStoredChunk(msg.getFileId(), msg.getChunkNo(), msg.getSenderId());
+				break;
+			case DELETE:
+				deleteFiles(msg.getFileId());
+				break;
+			case GETCHUNK:
+				searchChunk(msg.getFileId(), msg.getChunkNo(),
+						msg.getVersion().isDirectRestore() ? MessageCodec.decodeEndpoint(msg.body()) : null);
+				break;
+			case REMOVED:
+				removeStoredChunk(msg.getFileId(), msg.getChunkNo(), msg.getSenderId());
+				doIHave(msg.getFileId(), msg.getChunkNo(), msg.getSenderId());
+				break;
+			case HELLO:
+				if (Peer.getNegotiator().announce(msg.getSenderId(), msg.getField(3)))
+					Peer.answerHello();
+				break;
+			default:
+				break;
 			}
 		}
 	}
@@ -94,143 +149,124 @@ public class McHandler extends Handler implements Runnable {
 	 *            Tipo de mensagem
 	 * @return true se  um tipo aceitavel, false caso contrrio
 	 */
-	private boolean checkMessageType(String messageType) {
-		if ("STORED".equals(messageType) || "DELETE".equals(messageType) || "GETCHUNK".equals(messageType)
-				|| "REMOVED".equals(messageType))
-			this.messageType = messageType;
-
-		return !this.messageType.isEmpty();
+	private boolean checkMessageType(MessageType messageType) {
+		return messageType == MessageType.STORED || messageType == MessageType.DELETE
+				|| messageType == MessageType.GETCHUNK || messageType == MessageType.REMOVED
+				|| messageType == MessageType.HELLO;
 	}
 
 	/**
-	 * Apaga todos os ficheiros comeados por fileID
+	 * Apaga todos os chunks do ficheiro fileId.
 	 * 
-	 * @param fileID
-	 *            prefixo do nome do ficheiro a apagar
+	 * @param fileId
+	 *            Ficheiro a apagar
 	 */
 	private void deleteFiles(String fileId) {
-		Path path = Paths.get("./chunks/");
-
-		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(path, encrypt(fileId) + "*")) {
-			for (final Path file : directoryStream) {
-				Files.delete(file);
-			}
+		replication.removeFile(fileId);
+		try {
+			Peer.getChunkStore().removeFile(fileId);
 		} catch (IOException e) {
 			System.err.println("Failed to delete chunks on MCHandler.");
 		}
 	}
 
-	private void doIHave(String fileId, String chunkNo, int senderId) {
-		int i = Integer.parseInt(chunkNo);
-		String chunkNoStr = String.format("%03d", i);
-
-		if (fileExists("chunks/" + fileId + "." + chunkNoStr)) {
-			Path path = Paths.get("chunks/" + fileId + "." + chunkNoStr);
+	/**
+	 * Se este peer tiver o chunk removido por outro e o chunk tiver ficado
+	 * abaixo do grau de replicao pedido no backup, agenda o seu reenvio por
+	 * PUTCHUNK com esse grau depois de um atraso aleatrio. O grau percebido
+	 * conta os peers que enviaram STORED e este. O reenvio  cancelado se
+	 * entretanto outro peer enviar o PUTCHUNK do mesmo chunk. Os chunks cujo
+	 * grau no se conhece, importados de uma pasta chunks antiga, no so
+	 * reenviados.
+	 * 
+	 * @param fileId
+	 *            Ficheiro do chunk
+	 * @param chunkNo
+	 *            Nmero do chunk
+	 * @param senderId
+	 *            Peer que enviou a mensagem Removed
+	 */
+	private void doIHave(String fileId, int chunkNo, int senderId) {
+		StoredChunk stored = Peer.getChunkStore().getCatalog().get(fileId, chunkNo);
+		if (stored == null)
+			return;
+		if (stored.getDesiredDegree() <= 0) {
+			System.out.println("Not repairing chunk " + chunkNo + ": its replication degree is unknown.");
+			return;
+		}
+		if (replication.getDegree(fileId, chunkNo) + 1 >= stored.getDesiredDegree())
+			return;
 
+		suppression.schedule(MessageType.PUTCHUNK, fileId, chunkNo, () -> {
 			try {
-				Chunk c = new Chunk(fileId, Integer.parseInt(chunkNo), Files.readAllBytes(path));
-				chunksToRetransmit.add(c);
-				Peer.sendRetransmission(senderId);
+				ByteBuffer content = Peer.getChunkStore().get(fileId, chunkNo);
+				if (content != null)
+					Peer.sendRetransmission(new Chunk(fileId, chunkNo, stored.getDesiredDegree(), content),
+							senderId);
 			} catch (IOException e) {
 				System.err.println("Failed to read in mcHandler.doIHave().");
 			}
-		}
-	}
-
-	private boolean fileExists(String path) {
-		File f = new File(path);
-
-		return f.exists() && !f.isDirectory();
-	}
-
-	public Queue<Chunk> getChunksToSend() {
-		return chunksToSend;
+		}, MAX_ANSWER_DELAY);
 	}
 
-	public Queue<Chunk> getChunksToRetransmit() {
-		return chunksToRetransmit;
+	/**
+	 * @return Nmero de outros peers que enviaram STORED para o chunk
+	 */
+	public int getStoredCount(String fileId, int chunkNo) {
+		return replication.getDegree(fileId, chunkNo);
 	}
 
 	public boolean receivedAllStored(Chunk c) {
-		ChunkInfo ci = new ChunkInfo(c.getFileId(), c.getChunkNumber());
-		List<Integer> li = storedMap.get(ci);
-
-		if (li == null)
-			return false;
-		return c.getReplicationDegree() <= li.size();
+		return c.getReplicationDegree() <= replication.getDegree(c.getFileId(), c.getChunkNumber());
 	}
 
-	@Override
-	public void run() {
-		while (!Thread.currentThread().isInterrupted()) {
-			analyseMessages();
-		}
+	public ReplicationTracker getReplicationTracker() {
+		return replication;
 	}
 
 	/**
-	 * Procura o chunk do ficheiro fileId com o nmero chunkNo na pasta dos
-	 * chunks. Se encontrar adiciona ao chunksToSend para depois ser enviado.
+	 * Procura o chunk do ficheiro fileId com o nmero chunkNo no ChunkStore. Se
+	 * o encontrar, agenda o seu envio depois de um atraso aleatrio de 0 a
+	 * MAX_ANSWER_DELAY ms. O envio  cancelado se entretanto passar no MDR o
+	 * CHUNK de outro peer, e no  agendado se um passou h pouco.
 	 * 
 	 * @param fileId
 	 *            Ficheiro procurado
 	 * @param chunkNo
 	 *            Nmero do chunk procurado
+	 * @param endpoint
+	 *            Endpoint TCP de quem pediu o chunk, na verso 2.1, ou null
+	 *            para o enviar pelo MDR
 	 */
-	private void searchChunk(byte[] data) {
-		String convert = new String(data, 0, data.length);
-		String[] msg = convert.substring(0, convert.indexOf("\r\n")).split("\\s");
-		String fileId = msg[3];
-		String encriptedFileId = encrypt(fileId);
-		int chunkNo = Integer.parseInt(msg[4]);
-		String chunkNoStr = String.format("%03d", chunkNo);
-
-		if (fileExists("chunks/" + encriptedFileId + "." + chunkNoStr)) {
-			Path path = Paths.get("chunks/" + encriptedFileId + "." + chunkNoStr);
-
-			pauseThread();
-
-			if (!msgQueue.contains(data))
-				try {
-					Chunk c = new Chunk(fileId, chunkNo, Files.readAllBytes(path));
-					chunksToSend.add(c);
-					Peer.sendChunks();
-				} catch (IOException e) {
-					System.err.println("Failed to read in mcHandler.searchChunk().");
-				}
-		}
-	}
+	private void searchChunk(String fileId, int chunkNo, InetSocketAddress endpoint) {
+		if (!Peer.getChunkStore().contains(fileId, chunkNo))
+			return;
 
-	/**
-	 * Waits from 0 to 400ms.
-	 */
-	private void pauseThread() {
-		try {
-			new Thread(() -> {
-				try {
-					Thread.sleep(ThreadLocalRandom.current().nextLong(400));
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-			}) {
-				{
-					start();
-				}
-			}.join();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
+		suppression.schedule(MessageType.CHUNK, fileId, chunkNo, () -> {
+			try {
+				ByteBuffer content = Peer.getChunkStore().get(fileId, chunkNo);
+				if (content == null)
+					return;
+
+				Chunk c = new Chunk(fileId, chunkNo, 0, content);
+				if (endpoint != null)
+					Peer.sendChunk(c, endpoint);
+				else
+					Peer.sendChunk(c);
+			} catch (IOException e) {
+				System.err.println("Failed to read in mcHandler.searchChunk().");
+			}
+		}, MAX_ANSWER_DELAY);
 	}
 
 	/**
 	 * Imprime a mensagem no ecr.
 	 * 
 	 * @param msg
-	 *            Array de strings a ser imprimido
+	 *            Cabealho a ser imprimido
 	 */
-	protected void print(String[] msg) {
+	protected void print(MessageHeader msg) {
 		System.out.println("\nReceived on MC: ");
-		for (int i = 0; i < msg.length; i++)
-			System.out.print(msg[i] + "; ");
-		System.out.println();
+		System.out.println(msg);
 	}
 }
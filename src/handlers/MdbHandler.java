@@ -1,90 +1,164 @@
 package handlers;
 
 import java.io.IOException;
-import java.nio.file.FileAlreadyExistsException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
-import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import interfaces.Chunk;
+import peer.Datagram;
+import peer.IngressQueue;
 import peer.Peer;
+import peer.ProtocolScheduler;
 
 public class MdbHandler extends Handler implements Runnable {
-	private Queue<Chunk> chunksReceived = new LinkedList<Chunk>();
+	private Queue<Chunk> chunksReceived = new ConcurrentLinkedQueue<Chunk>();
+	private final ReplicationTracker replication;
+	private final ProtocolScheduler scheduler;
+	private final SuppressionTracker suppression;
+	private final long storeDelay;
+	/**
+	 * Chunks  espera do fim do atraso, para no agendar duas vezes o mesmo
+	 * chunk quando o PUTCHUNK  retransmitido.
+	 */
+	private final ChunkKeyMap<Boolean> deferred = new ChunkKeyMap<Boolean>();
 
-	public MdbHandler(Queue<byte[]> msgQueue, int id) {
+	/**
+	 * @param msgQueue
+	 *            Fila de mensagens do MDB
+	 * @param id
+	 *            Identificador deste peer
+	 * @param replication
+	 *            Registo dos peers que guardam cada chunk
+	 * @param scheduler
+	 *            Executa os armazenamentos adiados
+	 * @param suppression
+	 *            Onde ficam registados os PUTCHUNK de outros peers, para este
+	 *            no reenviar o mesmo chunk
+	 * @param storeDelay
+	 *            Atraso mximo, em ms, antes de guardar um chunk; 0 guarda
+	 *            logo
+	 */
+	public MdbHandler(IngressQueue<Datagram> msgQueue, int id, ReplicationTracker replication,
+			ProtocolScheduler scheduler, SuppressionTracker suppression, long storeDelay) {
 		super(msgQueue, id);
+		this.replication = replication;
+		this.scheduler = scheduler;
+		this.suppression = suppression;
+		this.storeDelay = storeDelay;
 	}
 
+	/**
+	 * Analisa uma mensagem recebida no MDB Channel.
+	 */
 	@Override
-	public void run() {
-		while (!Thread.currentThread().isInterrupted()) {
-			analyseMessages();
+	protected void analyseMessage(MessageHeader msg, Datagram datagram) {
+		if (checkValidMessageType(msg.getType()) && checkHeader(msg)) {
+			print(msg);
+			if (msg.getType() == MessageType.PUTCHUNK)
+				suppression.observed(MessageType.PUTCHUNK, msg.getFileId(), msg.getChunkNo());
+
+			if (storeDelay > 0 && !Peer.getChunkStore().contains(msg.getFileId(), msg.getChunkNo())) {
+				deferStore(msg.getType(), msg.getFileId(), msg.getChunkNo(), msg.getReplicationDeg(),
+						msg.copyBody());
+				return;
+			}
+
+			Chunk chunk;
+			if (msg.getType() == MessageType.PUTREF) {
+				chunk = new Chunk(msg.getFileId(), msg.getChunkNo(), msg.getReplicationDeg(), new byte[0]);
+				if (!linkChunk(chunk, msg.copyBody()))
+					return;
+			} else {
+				chunk = new Chunk(msg.getFileId(), msg.getChunkNo(), msg.getReplicationDeg(), msg.copyBody());
+				storeChunk(chunk);
+			}
+
+			chunksReceived.add(chunk);
+
+			Peer.sendStored();
 		}
 	}
 
 	/**
-	 * Analisa todas as mensagens recebidas no MDB Channel.
+	 * Guarda o chunk depois de um atraso aleatrio at storeDelay, s se at l
+	 * no tiverem chegado pelo MC STORED suficientes para o grau de replicao
+	 * pedido. Assim um chunk com grau 1 no fica guardado em todos os peers.
+	 * 
+	 * @param type
+	 *            PUTCHUNK ou PUTREF
+	 * @param fileId
+	 *            Ficheiro do chunk
+	 * @param chunkNo
+	 *            Nmero do chunk
+	 * @param replicationDeg
+	 *            Grau de replicao pedido
+	 * @param body
+	 *            Contedo do chunk, ou o seu fingerprint no caso do PUTREF
 	 */
-	private void analyseMessages() {
-		if (!msgQueue.isEmpty()) {
-			byte[] data = msgQueue.poll();
-			String convert = new String(data, 0, data.length);
-			String[] msg = convert.substring(0, convert.indexOf("\r\n")).split("\\s");
+	private void deferStore(MessageType type, String fileId, int chunkNo, int replicationDeg, byte[] body) {
+		synchronized (deferred) {
+			if (deferred.put(fileId, chunkNo, Boolean.TRUE) != null)
+				return;
+		}
 
-			if (checkValidMessageType(msg[0]) && checkHeader(msg)) {
-				print(msg);
+		scheduler.scheduleRandomBlocking(() -> {
+			synchronized (deferred) {
+				deferred.remove(fileId, chunkNo);
+			}
 
-				byte[] body = checkBody(data, convert);
-				Chunk chunk = new Chunk(msg[3], Integer.parseInt(msg[4]), Integer.parseInt(msg[5]), body);
+			int seen = replication.getDegree(fileId, chunkNo);
+			if (seen >= replicationDeg) {
+				System.out.println("Not storing chunk " + chunkNo + ": " + seen + " peers already store it.");
+				return;
+			}
 
+			Chunk chunk;
+			if (type == MessageType.PUTREF) {
+				chunk = new Chunk(fileId, chunkNo, replicationDeg, new byte[0]);
+				if (!linkChunk(chunk, body))
+					return;
+			} else {
+				chunk = new Chunk(fileId, chunkNo, replicationDeg, body);
 				storeChunk(chunk);
-				chunksReceived.add(chunk);
-
-				Peer.sendStored();
 			}
-		}
+
+			Peer.sendStored(chunk);
+		}, storeDelay);
 	}
 
 	/**
-	 * Analisa o body da mensagem.
+	 * Guarda um chunk de que s foi recebido o fingerprint, se o seu contedo
+	 * j estiver guardado neste peer.
 	 * 
-	 * @param data
-	 *            Informao original recebida
-	 * @param msg
-	 *            Mensagem recebida
-	 * @return byte[] com o body da mensagem
+	 * @param chunk
+	 *            Chunk a guardar
+	 * @param fingerprint
+	 *            SHA-256 do contedo do chunk
+	 * @return true se o chunk ficou guardado
 	 */
-	private byte[] checkBody(byte[] data, String msg) {
-		int bodyIndex = msg.indexOf("\r\n") + 4;
-		byte[] destination = new byte[msg.length() - bodyIndex];
-
-		if (bodyIndex != -1)
-			System.arraycopy(data, bodyIndex, destination, 0, data.length - bodyIndex);
+	private boolean linkChunk(Chunk chunk, byte[] fingerprint) {
+		if (fingerprint.length != MessageCodec.DIGEST_LENGTH)
+			return false;
 
-		return destination;
+		try {
+			return Peer.getChunkStore().putReference(chunk.getFileId(), chunk.getChunkNumber(),
+					chunk.getReplicationDegree(), MessageCodec.hex(fingerprint));
+		} catch (IOException e) {
+			System.err.println("I/O error in mdbHandler.linkChunk.");
+			return false;
+		}
 	}
 
 	/**
 	 * Analisa o cabealho da mensagem.
 	 * 
 	 * @param msg
-	 *            Mensagem recebida
+	 *            Cabealho recebido
 	 * @return true se o cabealho  vlido
 	 */
-	private boolean checkHeader(String[] msg) {
-		String version = msg[1];
-		int senderId = Integer.parseInt(msg[2]);
-		int replicationDeg = Integer.parseInt(msg[5]);
-
-		return "1.0".equals(version) && PEER_ID != senderId && replicationDeg >= 0;
-	}
-
-	public boolean checkIfReceivedRetransmission(byte[] b) {
-		return !msgQueue.isEmpty() && msgQueue.contains(b);
+	private boolean checkHeader(MessageHeader msg) {
+		return PEER_ID != msg.getSenderId() && msg.getChunkNo() >= 0
+				&& msg.getReplicationDeg() >= 0;
 	}
 
 	/**
@@ -95,8 +169,8 @@ public class MdbHandler extends Handler implements Runnable {
 	 *            MessageType recebido
 	 * @return True se tem o MessageType correto
 	 */
-	private boolean checkValidMessageType(String messageType) {
-		return "PUTCHUNK".equals(messageType);
+	private boolean checkValidMessageType(MessageType messageType) {
+		return messageType == MessageType.PUTCHUNK || messageType == MessageType.PUTREF;
 	}
 
 	/**
@@ -107,26 +181,15 @@ public class MdbHandler extends Handler implements Runnable {
 	}
 
 	/**
-	 * Cria o ficheiro que corresponde a um chunk. O ficheiro  criado na pasta
-	 * chunks que est no mesmo nvel que o src.
+	 * Guarda um chunk no ChunkStore do peer.
 	 * 
 	 * @param chunk
 	 *            Chunk a guardar
-	 * @throws IOException
-	 *             J existe um chunk com este fileId
 	 */
 	private void storeChunk(Chunk chunk) {
-		String chunkNo = String.format("%03d", chunk.getChunkNumber());
-		Path path = Paths.get(("./chunks/" + encrypt(chunk.getFileId()) + "." + chunkNo));
-		byte[] data = new byte[0];
-
 		try {
-			Files.createDirectories(path.getParent());
-			Files.createFile(path);
-			data = chunk.getContent();
-			Files.write(path, data, StandardOpenOption.CREATE);
-		} catch (FileAlreadyExistsException e) {
-			System.err.println("Chunk already exists: " + e.getMessage());
+			if (!Peer.getChunkStore().put(chunk))
+				System.err.println("Chunk already exists: " + chunk.getFileId() + " " + chunk.getChunkNumber());
 		} catch (IOException e) {
 			System.err.println("I/O error in mdbHandler.storeChunk.");
 		}
@@ -136,12 +199,11 @@ public class MdbHandler extends Handler implements Runnable {
 	 * Imprime a mensagem no ecr.
 	 * 
 	 * @param msg
-	 *            Array de strings a ser imprimido
+	 *            Cabealho a ser imprimido
 	 */
-	protected void print(String[] msg) {
+	protected void print(MessageHeader msg) {
 		System.out.println("\nReceived on MDB: ");
-		for (int i = 0; i < msg.length; i++)
-			System.out.print(msg[i] + "; ");
+		System.out.print(msg);
 		System.out.print("<CRLF><CRLF><body>;\n");
 	}
 }
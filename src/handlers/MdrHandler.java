@@ -1,86 +1,80 @@
 package handlers;
 
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
-import java.util.Stack;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import interfaces.Chunk;
+import peer.Datagram;
+import peer.IngressQueue;
 
 public class MdrHandler extends Handler implements Runnable {
-	private Stack<Chunk> chunksRequests = new Stack<Chunk>();
+	private List<ChunkListener> chunkListeners = new CopyOnWriteArrayList<ChunkListener>();
+	private final SuppressionTracker suppression;
 
-	public MdrHandler(Queue<byte[]> msgQueue, int id) {
-		super(msgQueue, id);
-	}
-
-	@Override
-	public void run() {
-		while (!Thread.currentThread().isInterrupted()) {
-			analyseMessages();
-		}
+	/**
+	 * Recebe os chunks que chegam pelo MDR, no thread do MdrHandler ou do seu
+	 * MessageDispatcher, ou por TCP, no thread da ligao. O contedo do chunk
+	 *  uma vista sobre o datagrama, vlida s durante a chamada.
+	 */
+	public interface ChunkListener {
+		/**
+		 * @param chunk
+		 *            Chunk recebido
+		 */
+		void received(Chunk chunk);
 	}
 
 	/**
-	 * Analisa o body da mensagem.
-	 * 
-	 * @param data
-	 *            Informao original recebida
-	 * @param msg
-	 *            Mensagem recebida
-	 * @return byte[] com o body da mensagem
+	 * @param msgQueue
+	 *            Fila de mensagens do MDR
+	 * @param id
+	 *            Identificador deste peer
+	 * @param suppression
+	 *            Onde ficam registados os CHUNK de outros peers, para este no
+	 *            enviar o mesmo chunk
 	 */
-	private byte[] analyseBody(byte[] data, String msg) {
-		int bodyIndex = msg.indexOf("\r\n") + 4;
-		byte[] destination = new byte[msg.length() - bodyIndex];
+	public MdrHandler(IngressQueue<Datagram> msgQueue, int id, SuppressionTracker suppression) {
+		super(msgQueue, id);
+		this.suppression = suppression;
+	}
 
-		if (bodyIndex != -1)
-			System.arraycopy(data, bodyIndex, destination, 0, data.length - bodyIndex);
+	public void addChunkListener(ChunkListener listener) {
+		chunkListeners.add(listener);
+	}
 
-		return destination;
+	public void removeChunkListener(ChunkListener listener) {
+		chunkListeners.remove(listener);
 	}
 
 	/**
 	 * Analisa o cabealho da mensagem.
 	 * 
 	 * @param msg
-	 *            Mensagem recebida
+	 *            Cabealho recebido
 	 * @return true se o cabealho  vlido
 	 */
-	private boolean analyseHeader(String[] msg) {
-		return "1.0".equals(msg[1]) && PEER_ID != Integer.parseInt(msg[2]);
+	private boolean analyseHeader(MessageHeader msg) {
+		return PEER_ID != msg.getSenderId() && msg.getChunkNo() >= 0;
 	}
 
 	/**
-	 * Analisa todas as mensagens armazenadas e cria o ficheiro se recebeu o
-	 * ltimo chunk do ficheiro.
+	 * Analisa uma mensagem e entrega o chunk recebido a quem est  espera
+	 * dele. O corpo nunca  copiado. Um CHUNK da verso 2.1 no tem corpo: s
+	 * avisa que o chunk foi enviado por TCP a quem o pediu.
 	 */
-	private void analyseMessages() {
-		if (!msgQueue.isEmpty()) {
-			byte[] data = msgQueue.poll();
-			String convert = new String(data, 0, data.length);
-			String[] msg = convert.substring(0, convert.indexOf("\r\n")).split("\\s");
-
-			if (checkValidMessageType(msg[0]) && analyseHeader(msg)) {
-				print(msg);
+	@Override
+	protected void analyseMessage(MessageHeader msg, Datagram datagram) {
+		if (checkValidMessageType(msg.getType()) && analyseHeader(msg)) {
+			print(msg);
+			suppression.observed(MessageType.CHUNK, msg.getFileId(), msg.getChunkNo());
 
-				byte[] body = analyseBody(data, convert);
-				Chunk chunk = new Chunk(msg[3], Integer.parseInt(msg[4]), body);
+			if (chunkListeners.isEmpty() || msg.getVersion().isDirectRestore())
+				return;
 
-				chunksRequests.push(chunk);
+			Chunk chunk = new Chunk(msg.getFileId(), msg.getChunkNo(), 0, msg.body());
 
-				if (isEndOfFile())
-					createFile(chunk.getFileId());
-			}
+			for (ChunkListener listener : chunkListeners)
+				listener.received(chunk);
 		}
 	}
 
@@ -92,107 +86,19 @@ public class MdrHandler extends Handler implements Runnable {
 	 *            MessageType recebido
 	 * @return True se tem o MessageType correto
 	 */
-	private boolean checkValidMessageType(String messageType) {
-		return "CHUNK".equals(messageType);
-	}
-
-	/**
-	 * Cria o ficheiro fileId na pasta files, com os chunks armazenados em
-	 * chunks.
-	 * 
-	 * @param fileId
-	 *            Caminho do ficheiro a criar
-	 */
-	private void createFile(String fileId) {
-		String encrypted = encrypt(fileId);
-		mergeFiles("chunks/" + encrypted, "files/" + fileId);
-	}
-
-	/**
-	 * @return the chunksReceived
-	 */
-	public Stack<Chunk> getRequests() {
-		return chunksRequests;
-	}
-
-	/**
-	 * Verifica se o chunk recebido mais recente  o ltimo do ficheiro.
-	 * 
-	 * @return true se o chunk  o ltimo do seu ficheiro, false se no for
-	 */
-	public boolean isEndOfFile() {
-		if (chunksRequests.isEmpty())
-			return false;
-		return chunksRequests.peek().getContent().length < 64000;
-	}
-
-	/**
-	 * Procura todos os chunks do ficheiro fileName.
-	 * 
-	 * @param fileName
-	 *            ficheiro a procurar
-	 * @return Lista dos chunks de fileName
-	 */
-	private List<File> listOfFilesToMerge(String fileName) {
-		File f = new File(fileName);
-		Path dir = Paths.get(f.getParent());
-		List<File> files = new LinkedList<File>();
-
-		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, f.getName() + ".*")) {
-			for (Path p : stream)
-				files.add(p.toFile());
-		} catch (Exception e) {
-			System.out.println("Failed to locate the directory chunks");
-		}
-
-		return files;
-	}
-
-	/**
-	 * Junta todos os chunks da lista files num novo ficheiro into.
-	 * 
-	 * @param files
-	 *            lista de ficheiros a juntar
-	 * @param into
-	 *            novo ficheiro
-	 * @throws IOException
-	 */
-	private void mergeFiles(List<File> files, File into) throws IOException {
-		Files.createDirectories(into.toPath().getParent());
-		Files.createFile(into.toPath());
-		try (BufferedOutputStream mergingStream = new BufferedOutputStream(new FileOutputStream(into))) {
-			for (File f : files) {
-				Files.copy(f.toPath(), mergingStream);
-			}
-		} catch (FileNotFoundException e) {
-			System.err.println("File was not found when trying to merge.");
-		}
-	}
-
-	/**
-	 * Cria o ficheiro destFile com o contedo de sourceFile.
-	 * 
-	 * @param sourceFile
-	 * @param destFile
-	 */
-	private void mergeFiles(String sourceFile, String destFile) {
-		try {
-			mergeFiles(listOfFilesToMerge(sourceFile), new File(destFile));
-		} catch (IOException e) {
-			System.err.println("I/O exception in MdrHandler.mergeFiles.");
-		}
+	private boolean checkValidMessageType(MessageType messageType) {
+		return messageType == MessageType.CHUNK;
 	}
 
 	/**
 	 * Imprime a mensagem no ecr.
 	 * 
 	 * @param msg
-	 *            Array de strings a ser imprimido
+	 *            Cabealho a ser imprimido
 	 */
-	protected void print(String[] msg) {
+	protected void print(MessageHeader msg) {
 		System.out.println("\nReceived on MDR: ");
-		for (int i = 0; i < msg.length; i++)
-			System.out.print(msg[i] + "; ");
+		System.out.print(msg);
 		System.out.print("<CRLF><CRLF><body>\n");
 	}
 }
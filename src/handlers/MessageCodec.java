@@ -0,0 +1,263 @@
+package handlers;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes message headers for every registered protocol version.
+ * 
+ * A header is a prefix that only depends on the version, type and sender, so
+ * it can be encoded once and cached, followed by the per-message fields. Which
+ * fields are present is fixed by the MessageType.
+ * 
+ * The 1.0 text header is "TYPE Version SenderId FileId [ChunkNo]
+ * [ReplicationDeg] CRLFCRLF". The 2.0 binary header is:
+ * 
+ * <pre>
+ * MAGIC(1) version(1) type(1) flags(1) senderId(4)
+ *     [fileId(32)] [chunkNo(varint)] [replicationDeg(1)]
+ * </pre>
+ * 
+ * followed directly by the body. MAGIC is not an ASCII letter, so a binary
+ * message can never be mistaken for a text one.
+ * 
+ * The body of a 2.1 GETCHUNK is the endpoint the chunk is to be sent to: port
+ * (2) followed by a 4 or 16 byte address.
+ */
+public final class MessageCodec {
+	public static final byte MAGIC = (byte) 0xB5;
+	public static final int DIGEST_LENGTH = 32;
+
+	static final int FLAG_FILE_ID = 0x01;
+	static final int FLAG_CHUNK_NO = 0x02;
+	static final int FLAG_REPLICATION = 0x04;
+
+	private static final byte[] CRLFCRLF = { '\r', '\n', '\r', '\n' };
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private MessageCodec() {
+	}
+
+	/**
+	 * Encodes a header.
+	 * 
+	 * @param version
+	 *            Protocol version of the message
+	 * @param type
+	 *            Message type
+	 * @param senderId
+	 *            Id of the sending peer
+	 * @param fileId
+	 *            FileId, or the version list of a HELLO
+	 * @param chunkNo
+	 *            Chunk number, ignored if the type has none
+	 * @param replicationDeg
+	 *            Replication degree, ignored if the type has none
+	 * @return Header bytes, including the CRLFCRLF of text headers
+	 */
+	public static byte[] encodeHeader(ProtocolVersion version, MessageType type, int senderId, String fileId,
+			int chunkNo, int replicationDeg) {
+		ByteBuffer buf = ByteBuffer.allocate(headerCapacity(fileId));
+		encodeHeader(buf, version, type, senderId, fileId, chunkNo, replicationDeg);
+		buf.flip();
+
+		byte[] header = new byte[buf.remaining()];
+		buf.get(header);
+		return header;
+	}
+
+	/**
+	 * Encodes a header into buf, from its position.
+	 * 
+	 * @see #encodeHeader(ProtocolVersion, MessageType, int, String, int, int)
+	 */
+	public static void encodeHeader(ByteBuffer buf, ProtocolVersion version, MessageType type, int senderId,
+			String fileId, int chunkNo, int replicationDeg) {
+		buf.put(encodePrefix(version, type, senderId));
+		encodeFields(buf, version, type, fileId, chunkNo, replicationDeg);
+	}
+
+	/**
+	 * Encodes the part of a header that only depends on version, type and
+	 * sender.
+	 * 
+	 * @return Prefix bytes, to be followed by encodeFields()
+	 */
+	public static byte[] encodePrefix(ProtocolVersion version, MessageType type, int senderId) {
+		ByteBuffer buf = ByteBuffer.allocate(32);
+
+		if (version.isBinary()) {
+			int flags = FLAG_FILE_ID;
+			if (type.hasChunkNo())
+				flags |= FLAG_CHUNK_NO;
+			if (type.hasReplicationDeg())
+				flags |= FLAG_REPLICATION;
+
+			buf.put(MAGIC).put(version.wireByte()).put((byte) type.ordinal()).put((byte) flags);
+			buf.putInt(senderId);
+		} else {
+			buf.put(type.bytes()).put((byte) ' ');
+			putAscii(buf, version.toString());
+			buf.put((byte) ' ');
+			putInt(buf, senderId);
+			buf.put((byte) ' ');
+		}
+
+		buf.flip();
+		byte[] prefix = new byte[buf.remaining()];
+		buf.get(prefix);
+		return prefix;
+	}
+
+	/**
+	 * Encodes the per-message fields of a header into buf, after its prefix.
+	 */
+	public static void encodeFields(ByteBuffer buf, ProtocolVersion version, MessageType type, String fileId,
+			int chunkNo, int replicationDeg) {
+		if (version.isBinary()) {
+			putDigest(buf, fileId);
+			if (type.hasChunkNo())
+				putVarint(buf, chunkNo);
+			if (type.hasReplicationDeg())
+				buf.put((byte) replicationDeg);
+		} else {
+			putAscii(buf, fileId);
+			buf.put((byte) ' ');
+			if (type.hasChunkNo()) {
+				putInt(buf, chunkNo);
+				buf.put((byte) ' ');
+			}
+			if (type.hasReplicationDeg()) {
+				putInt(buf, replicationDeg);
+				buf.put((byte) ' ');
+			}
+			buf.put(CRLFCRLF);
+		}
+	}
+
+	/**
+	 * @return Upper bound of the header size for a message about fileId
+	 */
+	public static int headerCapacity(String fileId) {
+		return 64 + (fileId == null ? 0 : fileId.length());
+	}
+
+	private static void putAscii(ByteBuffer buf, String s) {
+		for (int i = 0; i < s.length(); i++)
+			buf.put((byte) s.charAt(i));
+	}
+
+	/**
+	 * Writes the decimal digits of a non-negative int.
+	 */
+	private static void putInt(ByteBuffer buf, int value) {
+		if (value >= 10)
+			putInt(buf, value / 10);
+		buf.put((byte) ('0' + value % 10));
+	}
+
+	private static void putVarint(ByteBuffer buf, int value) {
+		while ((value & ~0x7f) != 0) {
+			buf.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		buf.put((byte) value);
+	}
+
+	/**
+	 * Reads an unsigned LEB128 varint from buf at offset.
+	 * 
+	 * @return The value in the low 32 bits and the number of bytes read in the
+	 *         high 32 bits, or -1 if the varint is truncated or too long
+	 */
+	static long getVarint(ByteBuffer buf, int offset) {
+		int value = 0;
+
+		for (int i = 0; i < 5 && offset + i < buf.limit(); i++) {
+			byte b = buf.get(offset + i);
+			value |= (b & 0x7f) << (7 * i);
+			if ((b & 0x80) == 0)
+				return ((long) (i + 1) << 32) | (value & 0xffffffffL);
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @return Body of a 2.1 GETCHUNK for endpoint
+	 */
+	public static ByteBuffer encodeEndpoint(InetSocketAddress endpoint) {
+		byte[] address = endpoint.getAddress().getAddress();
+		ByteBuffer body = ByteBuffer.allocate(2 + address.length);
+
+		body.putShort((short) endpoint.getPort()).put(address).flip();
+		return body.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @param body
+	 *            Body of a 2.1 GETCHUNK
+	 * @return The endpoint, or null if body is not one
+	 */
+	public static InetSocketAddress decodeEndpoint(ByteBuffer body) {
+		int length = body.remaining() - 2;
+		if (length != 4 && length != 16)
+			return null;
+
+		int port = body.getShort(body.position()) & 0xffff;
+		byte[] address = new byte[length];
+		body.duplicate().position(body.position() + 2).get(address);
+
+		try {
+			return port == 0 ? null : new InetSocketAddress(InetAddress.getByAddress(address), port);
+		} catch (UnknownHostException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if fileId is a lowercase hex SHA-256 digest, which the binary
+	 *         header carries as 32 raw bytes
+	 */
+	public static boolean isDigest(String fileId) {
+		if (fileId == null || fileId.length() != 2 * DIGEST_LENGTH)
+			return false;
+
+		for (int i = 0; i < fileId.length(); i++) {
+			char c = fileId.charAt(i);
+			if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f'))
+				return false;
+		}
+
+		return true;
+	}
+
+	private static void putDigest(ByteBuffer buf, String hex) {
+		for (int i = 0; i < DIGEST_LENGTH; i++)
+			buf.put((byte) (Character.digit(hex.charAt(2 * i), 16) << 4 | Character.digit(hex.charAt(2 * i + 1), 16)));
+	}
+
+	/**
+	 * @return Lowercase hex of length bytes of buf from offset
+	 */
+	static String hex(ByteBuffer buf, int offset, int length) {
+		char[] chars = new char[2 * length];
+
+		for (int i = 0; i < length; i++) {
+			int b = buf.get(offset + i) & 0xff;
+			chars[2 * i] = HEX[b >>> 4];
+			chars[2 * i + 1] = HEX[b & 0x0f];
+		}
+
+		return new String(chars);
+	}
+
+	/**
+	 * @return Lowercase hex of bytes
+	 */
+	public static String hex(byte[] bytes) {
+		return hex(ByteBuffer.wrap(bytes), 0, bytes.length);
+	}
+}
@@ -0,0 +1,354 @@
+package handlers;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Header of a received message, parsed straight from the datagram bytes.
+ * Both the 1.0 text header and the binary header of MessageCodec are read.
+ * 
+ * A text header line is tokenised in place: numeric fields are parsed from the
+ * bytes, the type is matched against pre-encoded names and the fileId is only
+ * turned into a String when asked for. The body is never decoded; it is
+ * exposed as an offset and length over the original buffer. An instance is
+ * meant to be reused by one handler thread for every message it reads.
+ */
+public class MessageHeader {
+	private static final int MAX_FIELDS = 8;
+
+	private ByteBuffer buf;
+	private final int[] fieldOffset = new int[MAX_FIELDS];
+	private final int[] fieldLength = new int[MAX_FIELDS];
+	private int fields;
+
+	private boolean binary;
+	private MessageType type;
+	private int versionMajor;
+	private int versionMinor;
+	private int senderId;
+	private int chunkNo;
+	private int replicationDeg;
+	private String fileId;
+	private int fileIdOffset;
+	private int bodyOffset;
+	private int bodyLength;
+
+	/**
+	 * Parses the header of the message in buf, between position 0 and the
+	 * limit. The buffer is kept, not copied, so it must stay untouched while
+	 * this header is in use.
+	 * 
+	 * @param buf
+	 *            Received datagram
+	 * @return true if the message has a known type, a version, a numeric sender
+	 *         and a fileId, and ends its header with CRLFCRLF if it is a text
+	 *         header
+	 */
+	public boolean parse(ByteBuffer buf) {
+		this.buf = buf;
+		reset();
+
+		if (buf.limit() > 0 && buf.get(0) == MessageCodec.MAGIC)
+			return parseBinary();
+
+		int end = indexOfCrlfCrlf(buf);
+		if (end < 0)
+			return false;
+
+		bodyOffset = end + 4;
+		bodyLength = buf.limit() - bodyOffset;
+
+		int lineEnd = 0;
+		while (lineEnd < end && buf.get(lineEnd) != '\r')
+			lineEnd++;
+
+		tokenise(lineEnd);
+
+		if (fields < 4)
+			return false;
+
+		type = MessageType.match(buf, fieldOffset[0], fieldLength[0]);
+		if (type == null || !parseVersion(fieldOffset[1], fieldLength[1]))
+			return false;
+
+		fileIdOffset = fieldOffset[3];
+		senderId = parseInt(2);
+		chunkNo = fields > 4 ? parseInt(4) : -1;
+		replicationDeg = fields > 5 ? parseInt(5) : -1;
+
+		return senderId >= 0;
+	}
+
+	/**
+	 * Parses the binary header of MessageCodec.
+	 */
+	private boolean parseBinary() {
+		binary = true;
+		if (buf.limit() < 8)
+			return false;
+
+		ProtocolVersion version = ProtocolVersion.fromWireByte(buf.get(1));
+		int typeIndex = buf.get(2) & 0xff;
+		int flags = buf.get(3);
+
+		if (version == null || !version.isBinary() || typeIndex >= MessageType.values().length)
+			return false;
+
+		type = MessageType.values()[typeIndex];
+		versionMajor = version.getMajor();
+		versionMinor = version.getMinor();
+		senderId = buf.getInt(4);
+
+		int i = 8;
+		if ((flags & MessageCodec.FLAG_FILE_ID) != 0) {
+			fileIdOffset = i;
+			i += MessageCodec.DIGEST_LENGTH;
+		} else
+			return false;
+
+		if ((flags & MessageCodec.FLAG_CHUNK_NO) != 0) {
+			long varint = MessageCodec.getVarint(buf, i);
+			if (varint < 0)
+				return false;
+			chunkNo = (int) varint;
+			i += (int) (varint >>> 32);
+		}
+
+		if ((flags & MessageCodec.FLAG_REPLICATION) != 0 && i < buf.limit())
+			replicationDeg = buf.get(i++) & 0xff;
+
+		if (i > buf.limit())
+			return false;
+
+		bodyOffset = i;
+		bodyLength = buf.limit() - i;
+		return senderId >= 0;
+	}
+
+	private void reset() {
+		binary = false;
+		fields = 0;
+		type = null;
+		versionMajor = versionMinor = -1;
+		senderId = chunkNo = replicationDeg = -1;
+		fileId = null;
+		bodyOffset = bodyLength = 0;
+	}
+
+	/**
+	 * Records the offset and length of every whitespace separated token before
+	 * lineEnd.
+	 */
+	private void tokenise(int lineEnd) {
+		int i = 0;
+
+		while (i < lineEnd && fields < MAX_FIELDS) {
+			while (i < lineEnd && isSpace(buf.get(i)))
+				i++;
+			if (i == lineEnd)
+				break;
+
+			int start = i;
+			while (i < lineEnd && !isSpace(buf.get(i)))
+				i++;
+
+			fieldOffset[fields] = start;
+			fieldLength[fields] = i - start;
+			fields++;
+		}
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+	/**
+	 * @return Index of the first CRLFCRLF in buf or -1
+	 */
+	private static int indexOfCrlfCrlf(ByteBuffer buf) {
+		int last = buf.limit() - 4;
+
+		for (int i = 0; i <= last; i++) {
+			if (buf.get(i) == '\r' && buf.get(i + 1) == '\n' && buf.get(i + 2) == '\r' && buf.get(i + 3) == '\n')
+				return i;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Parses "major.minor" in place.
+	 */
+	private boolean parseVersion(int offset, int length) {
+		int dot = -1;
+
+		for (int i = 0; i < length; i++) {
+			if (buf.get(offset + i) == '.') {
+				dot = i;
+				break;
+			}
+		}
+
+		if (dot <= 0 || dot == length - 1)
+			return false;
+
+		versionMajor = parseInt(offset, dot);
+		versionMinor = parseInt(offset + dot + 1, length - dot - 1);
+		return versionMajor >= 0 && versionMinor >= 0;
+	}
+
+	private int parseInt(int field) {
+		return parseInt(fieldOffset[field], fieldLength[field]);
+	}
+
+	/**
+	 * @return Non-negative decimal value of the bytes, or -1 if they are not a
+	 *         number
+	 */
+	private int parseInt(int offset, int length) {
+		if (length == 0 || length > 9)
+			return -1;
+
+		int value = 0;
+		for (int i = 0; i < length; i++) {
+			int digit = buf.get(offset + i) - '0';
+			if (digit < 0 || digit > 9)
+				return -1;
+			value = value * 10 + digit;
+		}
+
+		return value;
+	}
+
+	public MessageType getType() {
+		return type;
+	}
+
+	/**
+	 * @return Registered version of the message or null if it is unknown
+	 */
+	public ProtocolVersion getVersion() {
+		return ProtocolVersion.lookup(versionMajor, versionMinor);
+	}
+
+	/**
+	 * @return true if the message used the binary header
+	 */
+	public boolean isBinary() {
+		return binary;
+	}
+
+	/**
+	 * @return true if the message was sent with version major.minor
+	 */
+	public boolean isVersion(int major, int minor) {
+		return versionMajor == major && versionMinor == minor;
+	}
+
+	public int getVersionMajor() {
+		return versionMajor;
+	}
+
+	public int getVersionMinor() {
+		return versionMinor;
+	}
+
+	public int getSenderId() {
+		return senderId;
+	}
+
+	/**
+	 * @return The fileId, decoded on first use
+	 */
+	public String getFileId() {
+		if (fileId == null)
+			fileId = binary ? MessageCodec.hex(buf, fileIdOffset, MessageCodec.DIGEST_LENGTH)
+					: ascii(fileIdOffset, fieldLength[3]);
+		return fileId;
+	}
+
+	/**
+	 * @return Chunk number or -1 if absent or invalid
+	 */
+	public int getChunkNo() {
+		return chunkNo;
+	}
+
+	/**
+	 * @return Replication degree or -1 if absent or invalid
+	 */
+	public int getReplicationDeg() {
+		return replicationDeg;
+	}
+
+	/**
+	 * @return Number of tokens in the header line, 0 for binary headers
+	 */
+	public int getFieldCount() {
+		return fields;
+	}
+
+	/**
+	 * @param field
+	 *            Index of the token in the header line
+	 * @return The token as a String
+	 */
+	public String getField(int field) {
+		return ascii(fieldOffset[field], fieldLength[field]);
+	}
+
+	/**
+	 * @return Absolute index of the first body byte
+	 */
+	public int getBodyOffset() {
+		return bodyOffset;
+	}
+
+	public int getBodyLength() {
+		return bodyLength;
+	}
+
+	/**
+	 * @return View over the body bytes of the original buffer
+	 */
+	public ByteBuffer body() {
+		ByteBuffer body = buf.duplicate();
+		body.limit(bodyOffset + bodyLength).position(bodyOffset);
+		return body.slice();
+	}
+
+	/**
+	 * @return Copy of the body, for callers that keep it after the datagram
+	 *         is released
+	 */
+	public byte[] copyBody() {
+		byte[] copy = new byte[bodyLength];
+		body().get(copy);
+		return copy;
+	}
+
+	private String ascii(int offset, int length) {
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++)
+			chars[i] = (char) (buf.get(offset + i) & 0xff);
+		return new String(chars);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+
+		if (binary) {
+			sb.append(type).append("; ").append(getVersion()).append("; ").append(senderId).append("; ")
+					.append(getFileId()).append("; ");
+			if (chunkNo >= 0)
+				sb.append(chunkNo).append("; ");
+			if (replicationDeg >= 0)
+				sb.append(replicationDeg).append("; ");
+			return sb.toString();
+		}
+
+		for (int i = 0; i < fields; i++)
+			sb.append(getField(i)).append("; ");
+		return sb.toString();
+	}
+}
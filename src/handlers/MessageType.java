@@ -0,0 +1,72 @@
+package handlers;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Message types of the protocol, with their names pre-encoded so headers can
+ * be matched and written without going through String. The binary header
+ * carries the ordinal, so new types must be appended.
+ */
+public enum MessageType {
+	PUTCHUNK(true, true), STORED(true, false), GETCHUNK(true, false), CHUNK(true, false), DELETE(false, false),
+	REMOVED(true, false), HELLO(false, false), PUTREF(true, true);
+
+	private static final MessageType[] VALUES = values();
+
+	private final byte[] name = name().getBytes(StandardCharsets.US_ASCII);
+	private final boolean chunkNo;
+	private final boolean replicationDeg;
+
+	MessageType(boolean chunkNo, boolean replicationDeg) {
+		this.chunkNo = chunkNo;
+		this.replicationDeg = replicationDeg;
+	}
+
+	/**
+	 * @return true if the header of this type carries a chunk number
+	 */
+	public boolean hasChunkNo() {
+		return chunkNo;
+	}
+
+	/**
+	 * @return true if the header of this type carries a replication degree
+	 */
+	public boolean hasReplicationDeg() {
+		return replicationDeg;
+	}
+
+	/**
+	 * @return ASCII bytes of the type name
+	 */
+	public byte[] bytes() {
+		return name.clone();
+	}
+
+	/**
+	 * Finds the type whose name is stored in buf[offset, offset + length).
+	 * 
+	 * @param buf
+	 *            Buffer holding the header
+	 * @param offset
+	 *            Absolute index of the first byte
+	 * @param length
+	 *            Number of bytes of the token
+	 * @return Matching type or null
+	 */
+	public static MessageType match(ByteBuffer buf, int offset, int length) {
+		for (MessageType type : VALUES) {
+			if (type.name.length != length)
+				continue;
+
+			int i = 0;
+			while (i < length && buf.get(offset + i) == type.name[i])
+				i++;
+			if (i == length)
+				return type;
+		}
+
+		return null;
+	}
+}
@@ -0,0 +1,553 @@
+package handlers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+
+import interfaces.Chunk;
+
+/**
+ * Log structured chunk store. Chunks are appended to segment files of up to
+ * segmentSize bytes and found through an in-memory index from (fileId,
+ * chunkNo) to (segment, offset, length), so storing or serving a chunk never
+ * creates or looks up a file.
+ *
+ * Removing a chunk appends a tombstone. The index is rebuilt at startup by
+ * replaying the segments in order; a torn record at the end of a segment is
+ * cut off. Once less than half of a sealed segment is live, a background
+ * thread copies its live records to the active segment and deletes it.
+ *
+ * Appends hold the lock of the store, as a segment is written in order and a
+ * hole left by a crash would cut off the records after it at replay. They are
+ * made by a writer thread of the store, as a FileChannel is closed when a
+ * thread writing to it is interrupted, such as the thread of a cancelled
+ * operation. Chunks are read outside the lock, on the thread asking for them;
+ * a read that loses its segment to a compaction looks the chunk up again, and
+ * a segment closed by an interrupted reader is opened again.
+ *
+ * Record layout: magic (4), type (1), fileId length (2), fileId, chunkNo (4),
+ * length (4), CRC32 of the content (4), then for chunk records the SHA-256 of
+ * the content (32) and the content.
+ */
+public class PackChunkStore implements ChunkStore {
+	private static final int MAGIC = 0x53444953;
+	private static final byte CHUNK = 1;
+	private static final byte TOMBSTONE = 2;
+	private static final int FIXED_HEADER = 4 + 1 + 2 + 4 + 4 + 4;
+
+	private final Path dir;
+	private final long segmentSize;
+	private final ChunkKeyMap<Location> index = new ChunkKeyMap<Location>();
+	private final Map<String, Location> byFingerprint = new HashMap<String, Location>();
+	private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+	private final Set<Integer> compacting = new HashSet<Integer>();
+	private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "pack-compactor");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "pack-writer");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private Segment active;
+	private boolean closed = false;
+
+	/**
+	 * Opens the store, replaying the segments found in dir.
+	 *
+	 * @param dir
+	 *            Directory of the segment files
+	 * @param segmentSize
+	 *            Size after which a new segment is started
+	 * @throws IOException
+	 */
+	public PackChunkStore(Path dir, long segmentSize) throws IOException {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+
+		Files.createDirectories(dir);
+		List<Integer> ids = new ArrayList<Integer>();
+		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(dir, "segment-*.pack")) {
+			for (Path path : directoryStream) {
+				String name = path.getFileName().toString();
+				ids.add(Integer.parseInt(name.substring(8, name.length() - 5)));
+			}
+		}
+		ids.sort(null);
+
+		synchronized (this) {
+			for (int id : ids)
+				replay(openSegment(id));
+
+			active = segments.isEmpty() ? openSegment(1) : segments.lastEntry().getValue();
+
+			for (Segment segment : segments.values())
+				scheduleCompaction(segment);
+		}
+	}
+
+	@Override
+	public boolean put(Chunk chunk) throws IOException {
+		return write(() -> {
+			synchronized (this) {
+				if (index.containsKey(chunk.getFileId(), chunk.getChunkNumber()))
+					return false;
+
+				store(chunk.getFileId(), chunk.getChunkNumber(), chunk.getBuffer(), chunk.getFingerprint());
+				return true;
+			}
+		});
+	}
+
+	@Override
+	public boolean putReference(String fileId, int chunkNo, int replicationDegree, String fingerprint)
+			throws IOException {
+		return write(() -> {
+			synchronized (this) {
+				if (index.containsKey(fileId, chunkNo))
+					return true;
+
+				Location source = byFingerprint.get(fingerprint);
+				if (source == null)
+					return false;
+
+				store(fileId, chunkNo, read(source), source.fingerprint);
+				return true;
+			}
+		});
+	}
+
+	@Override
+	public ByteBuffer get(String fileId, int chunkNo) throws IOException {
+		Location stale = null;
+
+		while (true) {
+			Location location;
+			FileChannel channel;
+
+			synchronized (this) {
+				location = index.get(fileId, chunkNo);
+				if (location == null)
+					return null;
+				channel = segments.get(location.segment).channel;
+			}
+
+			try {
+				return read(channel, location);
+			} catch (ClosedChannelException e) {
+				// Compacted meanwhile, closed by an interrupted reader or closed
+				boolean reopened = reopen(location.segment, channel);
+				if (Thread.currentThread().isInterrupted() || !reopened && location == stale)
+					throw e;
+				stale = location;
+			}
+		}
+	}
+
+	@Override
+	public synchronized boolean contains(String fileId, int chunkNo) {
+		return index.containsKey(fileId, chunkNo);
+	}
+
+	@Override
+	public synchronized long size(String fileId, int chunkNo) {
+		Location location = index.get(fileId, chunkNo);
+		return location == null ? -1 : location.length;
+	}
+
+	@Override
+	public boolean remove(String fileId, int chunkNo) throws IOException {
+		return write(() -> {
+			synchronized (this) {
+				Location location = index.remove(fileId, chunkNo);
+				if (location == null)
+					return false;
+
+				removed(fileId, chunkNo, location);
+				return true;
+			}
+		});
+	}
+
+	@Override
+	public int removeFile(String fileId) throws IOException {
+		return write(() -> {
+			synchronized (this) {
+				int[] chunkNos = index.chunkNumbers(fileId);
+
+				for (int chunkNo : chunkNos)
+					removed(fileId, chunkNo, index.remove(fileId, chunkNo));
+				return chunkNos.length;
+			}
+		});
+	}
+
+	@Override
+	public synchronized List<StoredChunk> list() {
+		List<StoredChunk> chunks = new ArrayList<StoredChunk>(index.size());
+
+		index.forEach((fileId, chunkNo, location) -> chunks.add(new StoredChunk(fileId, chunkNo, location.length)));
+		return chunks;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		closed = true;
+		writer.shutdown();
+		compactor.shutdownNow();
+		for (Segment segment : segments.values())
+			segment.channel.close();
+	}
+
+	@Override
+	public synchronized String toString() {
+		long size = 0, live = 0;
+		for (Segment segment : segments.values()) {
+			size += segment.size;
+			live += segment.live;
+		}
+
+		return "pack in " + dir + ", " + index.size() + " chunks, " + segments.size() + " segments, " + live
+				+ " of " + size + " bytes live";
+	}
+
+	/**
+	 * Runs a change of the store on the writer thread and waits for it. The
+	 * change is made even if the caller is interrupted meanwhile; the caller
+	 * is left interrupted.
+	 */
+	private <T> T write(Callable<T> change) throws IOException {
+		Future<T> result;
+		boolean interrupted = false;
+
+		try {
+			result = writer.submit(change);
+		} catch (RejectedExecutionException e) {
+			throw new ClosedChannelException();
+		}
+
+		try {
+			while (true) {
+				try {
+					return result.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IOException(e.getCause());
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Opens a segment again if its channel was closed by an interrupted
+	 * reader, unless it was compacted away or the store is closed.
+	 *
+	 * @param failed
+	 *            Channel the read failed on
+	 * @return true if the segment has an open channel other than failed
+	 */
+	private synchronized boolean reopen(int id, FileChannel failed) throws IOException {
+		Segment segment = segments.get(id);
+		if (closed || segment == null)
+			return false;
+
+		if (segment.channel == failed) {
+			if (failed.isOpen())
+				return false;
+			segment.channel = FileChannel.open(segment.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the tombstone of a chunk taken out of the index.
+	 */
+	private void removed(String fileId, int chunkNo, Location location) throws IOException {
+		byFingerprint.remove(MessageCodec.hex(location.fingerprint), location);
+		append(TOMBSTONE, fileId, chunkNo, null, null);
+
+		Segment segment = segments.get(location.segment);
+		segment.live -= location.recordLength;
+		scheduleCompaction(segment);
+	}
+
+	private void store(String fileId, int chunkNo, ByteBuffer content, byte[] fingerprint) throws IOException {
+		Location location = append(CHUNK, fileId, chunkNo, content, fingerprint);
+
+		index.put(fileId, chunkNo, location);
+		byFingerprint.putIfAbsent(MessageCodec.hex(fingerprint), location);
+		active.live += location.recordLength;
+	}
+
+	/**
+	 * Appends a record to the active segment, starting a new one if it is full.
+	 *
+	 * @return Location of the record
+	 */
+	private Location append(byte type, String fileId, int chunkNo, ByteBuffer content, byte[] fingerprint)
+			throws IOException {
+		if (active.size >= segmentSize)
+			active = openSegment(active.id + 1);
+
+		byte[] name = fileId.getBytes(StandardCharsets.UTF_8);
+		int length = content == null ? 0 : content.remaining();
+		ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER + name.length + (type == CHUNK ? 32 : 0));
+
+		header.putInt(MAGIC).put(type).putShort((short) name.length).put(name).putInt(chunkNo)
+				.putInt(length).putInt(content == null ? 0 : crc(content));
+		if (type == CHUNK)
+			header.put(fingerprint);
+		header.flip();
+
+		long start = active.size;
+		long payload = start + header.remaining();
+		ByteBuffer[] parts = content == null ? new ByteBuffer[] { header }
+				: new ByteBuffer[] { header, content.duplicate() };
+
+		active.channel.position(start);
+		while (parts[parts.length - 1].hasRemaining())
+			active.channel.write(parts);
+		active.size = payload + length;
+
+		return new Location(active.id, payload, length, active.size - start, fingerprint);
+	}
+
+	private ByteBuffer read(Location location) throws IOException {
+		return read(segments.get(location.segment).channel, location);
+	}
+
+	private static ByteBuffer read(FileChannel channel, Location location) throws IOException {
+		ByteBuffer content = ByteBuffer.allocate(location.length);
+
+		while (content.hasRemaining())
+			if (channel.read(content, location.offset + content.position()) < 0)
+				throw new IOException("Truncated record in segment " + location.segment);
+
+		content.flip();
+		return content;
+	}
+
+	private Segment openSegment(int id) throws IOException {
+		Path path = dir.resolve(String.format("segment-%06d.pack", id));
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		Segment segment = new Segment(id, path, channel);
+
+		segments.put(id, segment);
+		return segment;
+	}
+
+	/**
+	 * Rebuilds the index from a segment, cutting off a torn record at its end.
+	 */
+	private void replay(Segment segment) throws IOException {
+		long end = segment.channel.size();
+		long position = 0;
+		Record record;
+
+		while (position < end && (record = Record.read(segment.channel, position, true)) != null) {
+			Location previous = index.remove(record.fileId, record.chunkNo);
+
+			if (previous != null) {
+				segments.get(previous.segment).live -= previous.recordLength;
+				byFingerprint.remove(MessageCodec.hex(previous.fingerprint), previous);
+			}
+
+			if (record.type == CHUNK) {
+				Location location = new Location(segment.id, record.payload, record.length, record.recordLength,
+						record.fingerprint);
+				index.put(record.fileId, record.chunkNo, location);
+				byFingerprint.putIfAbsent(MessageCodec.hex(record.fingerprint), location);
+				segment.live += record.recordLength;
+			}
+
+			position += record.recordLength;
+		}
+
+		if (position < end) {
+			System.err.println("Cutting torn record at " + position + " of " + segment.path);
+			segment.channel.truncate(position);
+		}
+		segment.size = position;
+	}
+
+	private void scheduleCompaction(Segment segment) {
+		if (segment == active || segment.live * 2 >= segment.size || !compacting.add(segment.id))
+			return;
+
+		compactor.execute(() -> {
+			try {
+				compact(segment);
+			} catch (IOException e) {
+				System.err.println("Failed to compact " + segment.path + ".");
+			}
+		});
+	}
+
+	/**
+	 * Moves the live records of a sealed segment to the active one and deletes
+	 * it. A tombstone is carried over while an older segment may still hold the
+	 * record it removes. Records are copied one at a time, so the store stays
+	 * usable during the compaction.
+	 */
+	private void compact(Segment segment) throws IOException {
+		long position = 0;
+		Record record;
+
+		while (position < segment.size && (record = Record.read(segment.channel, position, false)) != null) {
+			synchronized (this) {
+				Location location = index.get(record.fileId, record.chunkNo);
+
+				if (record.type == CHUNK && location != null && location.segment == segment.id
+						&& location.offset == record.payload) {
+					byFingerprint.remove(MessageCodec.hex(location.fingerprint), location);
+					store(record.fileId, record.chunkNo, read(location), location.fingerprint);
+					segment.live -= location.recordLength;
+				} else if (record.type == TOMBSTONE && location == null && segments.firstKey() != segment.id)
+					append(TOMBSTONE, record.fileId, record.chunkNo, null, null);
+			}
+
+			position += record.recordLength;
+		}
+
+		synchronized (this) {
+			segments.remove(segment.id);
+			compacting.remove(segment.id);
+			segment.channel.close();
+			Files.delete(segment.path);
+		}
+	}
+
+	private static int crc(ByteBuffer content) {
+		CRC32 crc = new CRC32();
+		crc.update(content.duplicate());
+		return (int) crc.getValue();
+	}
+
+	private static final class Location {
+		final int segment;
+		final long offset;
+		final int length;
+		final long recordLength;
+		final byte[] fingerprint;
+
+		Location(int segment, long offset, int length, long recordLength, byte[] fingerprint) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.recordLength = recordLength;
+			this.fingerprint = fingerprint;
+		}
+	}
+
+	private static final class Segment {
+		final int id;
+		final Path path;
+		volatile FileChannel channel;
+		long size;
+		long live;
+
+		Segment(int id, Path path, FileChannel channel) {
+			this.id = id;
+			this.path = path;
+			this.channel = channel;
+		}
+	}
+
+	/**
+	 * Header of a record read back from a segment.
+	 */
+	private static final class Record {
+		byte type;
+		String fileId;
+		int chunkNo;
+		int length;
+		byte[] fingerprint;
+		long payload;
+		long recordLength;
+
+		/**
+		 * @param verify
+		 *            Read the content and check its CRC
+		 * @return The record at position, or null if it is torn or corrupt
+		 */
+		static Record read(FileChannel channel, long position, boolean verify) throws IOException {
+			ByteBuffer fixed = ByteBuffer.allocate(7);
+			if (!readFully(channel, fixed, position) || fixed.getInt(0) != MAGIC)
+				return null;
+
+			Record record = new Record();
+			record.type = fixed.get(4);
+			int fileIdLength = fixed.getShort(5) & 0xFFFF;
+			if (record.type != CHUNK && record.type != TOMBSTONE)
+				return null;
+
+			ByteBuffer rest = ByteBuffer.allocate(fileIdLength + 12 + (record.type == CHUNK ? 32 : 0));
+			if (!readFully(channel, rest, position + 7))
+				return null;
+
+			byte[] fileId = new byte[fileIdLength];
+			rest.flip();
+			rest.get(fileId);
+			record.fileId = new String(fileId, StandardCharsets.UTF_8);
+			record.chunkNo = rest.getInt();
+			record.length = rest.getInt();
+			int crc = rest.getInt();
+			if (record.type == CHUNK) {
+				record.fingerprint = new byte[32];
+				rest.get(record.fingerprint);
+			}
+
+			record.payload = position + 7 + rest.limit();
+			record.recordLength = record.payload + record.length - position;
+
+			if (record.length < 0 || record.payload + record.length > channel.size())
+				return null;
+
+			if (verify && record.type == CHUNK) {
+				ByteBuffer content = ByteBuffer.allocate(record.length);
+				if (!readFully(channel, content, record.payload) || crc(content.flip()) != crc)
+					return null;
+			}
+
+			return record;
+		}
+
+		private static boolean readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+			while (buf.hasRemaining())
+				if (channel.read(buf, position + buf.position()) < 0)
+					return false;
+			return true;
+		}
+	}
+}
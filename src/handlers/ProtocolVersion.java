@@ -0,0 +1,97 @@
+package handlers;
+
+/**
+ * Registry of the protocol versions this implementation understands.
+ * 
+ * 1.0 is the text protocol: "TYPE Version SenderId FileId ChunkNo
+ * ReplicationDeg CRLFCRLF Body". 2.0 uses the compact binary header written
+ * and read by MessageCodec and MessageHeader; it is only spoken once every
+ * known peer has announced it. 2.1 keeps the binary header and moves restore
+ * traffic off MDR: a GETCHUNK carries the initiator's TCP endpoint as its
+ * body, the chunk is streamed there, and only the CHUNK header is multicast.
+ */
+public enum ProtocolVersion {
+	V1_0(1, 0, false, false), V2_0(2, 0, true, false), V2_1(2, 1, true, true);
+
+	private static final ProtocolVersion[] VALUES = values();
+
+	private final int major;
+	private final int minor;
+	private final boolean binary;
+	private final boolean directRestore;
+	private final String text;
+
+	ProtocolVersion(int major, int minor, boolean binary, boolean directRestore) {
+		this.major = major;
+		this.minor = minor;
+		this.binary = binary;
+		this.directRestore = directRestore;
+		this.text = major + "." + minor;
+	}
+
+	public int getMajor() {
+		return major;
+	}
+
+	public int getMinor() {
+		return minor;
+	}
+
+	/**
+	 * @return true if messages of this version use the binary header
+	 */
+	public boolean isBinary() {
+		return binary;
+	}
+
+	/**
+	 * @return true if CHUNK bodies of this version go over TCP to the endpoint
+	 *         given in the GETCHUNK, and CHUNK messages on MDR have no body
+	 */
+	public boolean isDirectRestore() {
+		return directRestore;
+	}
+
+	/**
+	 * @return Version byte of the binary header
+	 */
+	public byte wireByte() {
+		return (byte) (major << 4 | minor);
+	}
+
+	/**
+	 * @return Registered version major.minor or null
+	 */
+	public static ProtocolVersion lookup(int major, int minor) {
+		for (ProtocolVersion v : VALUES) {
+			if (v.major == major && v.minor == minor)
+				return v;
+		}
+		return null;
+	}
+
+	/**
+	 * @return Registered version with the given version byte or null
+	 */
+	public static ProtocolVersion fromWireByte(byte b) {
+		return lookup((b >> 4) & 0x0f, b & 0x0f);
+	}
+
+	/**
+	 * @param text
+	 *            Version as written in a text header, e.g. "1.0"
+	 * @return Registered version or null
+	 */
+	public static ProtocolVersion parse(String text) {
+		for (ProtocolVersion v : VALUES) {
+			if (v.text.equals(text))
+				return v;
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return text;
+	}
+}
@@ -0,0 +1,103 @@
+package handlers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Set;
+
+/**
+ * Chooses which stored chunks to give up to free space.
+ *
+ * Chunks are ranked by surplus, the perceived minus the desired replication
+ * degree, so chunks that other peers already hold more copies of than needed
+ * go first. Removing them triggers no new PUTCHUNK, as the other holders only
+ * resend a chunk left below its desired degree. Ties go to bigger chunks,
+ * which free the space with fewer removals, and then to older ones. The ranked
+ * chunks are taken until enough space is freed, and any of them that is not
+ * needed to reach the target is put back. Finally the last chunk taken is
+ * swapped for the smallest chunk with at least the same surplus that still
+ * reaches the target, so a small reclaim does not remove a whole 64000 byte
+ * chunk when a smaller one would do.
+ */
+public class ReclaimPlanner {
+	private static final Comparator<StoredChunk> ORDER = Comparator
+			.comparingInt(ReclaimPlanner::surplus).reversed()
+			.thenComparing(Comparator.comparingLong(StoredChunk::getSize).reversed())
+			.thenComparingLong(StoredChunk::getStoredAt);
+
+	private final ChunkCatalog catalog;
+
+	public ReclaimPlanner(ChunkCatalog catalog) {
+		this.catalog = catalog;
+	}
+
+	/**
+	 * @param spaceToFree
+	 *            Bytes to free
+	 * @return Chunks to remove, best candidates first
+	 */
+	public List<StoredChunk> plan(long spaceToFree) {
+		List<StoredChunk> chosen = new ArrayList<StoredChunk>();
+		if (spaceToFree <= 0)
+			return chosen;
+
+		List<StoredChunk> candidates = catalog.list();
+		candidates.sort(ORDER);
+
+		long freed = 0;
+		for (StoredChunk chunk : candidates) {
+			if (freed >= spaceToFree)
+				break;
+			chosen.add(chunk);
+			freed += chunk.getSize();
+		}
+
+		ListIterator<StoredChunk> worst = chosen.listIterator(chosen.size());
+		while (worst.hasPrevious()) {
+			StoredChunk chunk = worst.previous();
+			if (freed - chunk.getSize() >= spaceToFree) {
+				worst.remove();
+				freed -= chunk.getSize();
+			}
+		}
+
+		if (!chosen.isEmpty())
+			bestFit(candidates, chosen, spaceToFree - freed);
+
+		return chosen;
+	}
+
+	private static void bestFit(List<StoredChunk> candidates, List<StoredChunk> chosen, long spare) {
+		int last = chosen.size() - 1;
+		StoredChunk worst = chosen.get(last);
+		long need = worst.getSize() + spare;
+		StoredChunk best = worst;
+		Set<StoredChunk> taken = Collections.newSetFromMap(new IdentityHashMap<StoredChunk, Boolean>());
+		taken.addAll(chosen);
+
+		for (StoredChunk chunk : candidates)
+			if (surplus(chunk) >= surplus(worst) && chunk.getSize() >= need && chunk.getSize() < best.getSize()
+					&& !taken.contains(chunk))
+				best = chunk;
+
+		chosen.set(last, best);
+	}
+
+	private static int surplus(StoredChunk chunk) {
+		return chunk.getPerceivedDegree() - chunk.getDesiredDegree();
+	}
+
+	/**
+	 * @return Number of chunks in plan that will fall below their desired degree
+	 */
+	public static int underReplicated(List<StoredChunk> plan) {
+		int count = 0;
+		for (StoredChunk chunk : plan)
+			if (chunk.getPerceivedDegree() <= chunk.getDesiredDegree())
+				count++;
+		return count;
+	}
+}
@@ -0,0 +1,450 @@
+package handlers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Which peers sent STORED for each chunk, as a bitset of peer indexes.
+ *
+ * Peer ids come from the network, so they are not used as bit positions:
+ * every peer id seen is given the next dense index, up to MAX_PEERS peers,
+ * and STOREDs from peers beyond that are ignored. The bitsets of a file are
+ * kept in one long array, indexed by chunkNo, with as many words per chunk as
+ * needed for the highest index in use; with fewer than 64 peers that is 8
+ * bytes per chunk. Files are spread over STRIPES locks by fileId, so STORED
+ * messages for different files do not contend.
+ *
+ * A backup can wait for a chunk to reach a degree: the future returned by
+ * awaitDegree completes on the STORED that reaches it.
+ *
+ * The tracker is written to a snapshot by save() and read back by load(), so
+ * the degrees survive restarts; STOREDs seen after the last save are lost on
+ * a crash, which only makes the degrees look lower.
+ */
+public class ReplicationTracker {
+	private static final int SNAPSHOT_MAGIC = 0x52455032;
+	private static final int STRIPES = 64;
+	/**
+	 * Largest chunkNo the protocol can carry (six digits).
+	 */
+	private static final int MAX_CHUNK_NO = 999999;
+	/**
+	 * Largest number of distinct peers tracked, 16 words per chunk.
+	 */
+	private static final int MAX_PEERS = 1024;
+
+	private final Path snapshot;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	private final Map<Integer, Integer> peerIndexes = new ConcurrentHashMap<Integer, Integer>();
+	private volatile boolean dirty = false;
+	private boolean full = false;
+
+	/**
+	 * @param snapshot
+	 *            File the tracker is saved to
+	 */
+	public ReplicationTracker(Path snapshot) {
+		this.snapshot = snapshot;
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new Stripe();
+	}
+
+	/**
+	 * Records that a peer stores a chunk.
+	 *
+	 * @return The number of peers storing the chunk, or -1 if the peer was
+	 *         already known to store it
+	 */
+	public int add(String fileId, int chunkNo, int peerId) {
+		int index = peerIndex(peerId, true);
+		if (chunkNo < 0 || chunkNo > MAX_CHUNK_NO || index < 0)
+			return -1;
+
+		Stripe stripe = stripe(fileId);
+		List<Waiter> reached;
+		int degree;
+
+		synchronized (stripe) {
+			Degrees file = stripe.files.computeIfAbsent(fileId, k -> new Degrees());
+			if (!file.set(chunkNo, index))
+				return -1;
+
+			degree = file.count(chunkNo);
+			reached = file.reached(chunkNo, degree);
+		}
+
+		dirty = true;
+		if (reached != null)
+			for (Waiter waiter : reached)
+				waiter.future.complete(degree);
+		return degree;
+	}
+
+	/**
+	 * Records that a peer no longer stores a chunk.
+	 *
+	 * @return The number of peers storing the chunk, or -1 if the peer was not
+	 *         known to store it
+	 */
+	public int remove(String fileId, int chunkNo, int peerId) {
+		int index = peerIndex(peerId, false);
+		if (chunkNo < 0 || chunkNo > MAX_CHUNK_NO || index < 0)
+			return -1;
+
+		Stripe stripe = stripe(fileId);
+
+		synchronized (stripe) {
+			Degrees file = stripe.files.get(fileId);
+			if (file == null || !file.clear(chunkNo, index))
+				return -1;
+
+			dirty = true;
+			return file.count(chunkNo);
+		}
+	}
+
+	/**
+	 * Forgets every chunk of a file. Waiters of the file are left pending.
+	 */
+	public void removeFile(String fileId) {
+		Stripe stripe = stripe(fileId);
+
+		synchronized (stripe) {
+			Degrees file = stripe.files.get(fileId);
+			if (file == null)
+				return;
+
+			if (file.waiters.isEmpty())
+				stripe.files.remove(fileId);
+			else
+				file.clearAll();
+			dirty = true;
+		}
+	}
+
+	/**
+	 * @return Number of peers known to store the chunk
+	 */
+	public int getDegree(String fileId, int chunkNo) {
+		Stripe stripe = stripe(fileId);
+
+		synchronized (stripe) {
+			Degrees file = stripe.files.get(fileId);
+			return file == null ? 0 : file.count(chunkNo);
+		}
+	}
+
+	/**
+	 * @return Degrees of chunks 1 to chunkCount of a file, at index chunkNo - 1
+	 */
+	public int[] getDegrees(String fileId, int chunkCount) {
+		Stripe stripe = stripe(fileId);
+		int[] degrees = new int[chunkCount];
+
+		synchronized (stripe) {
+			Degrees file = stripe.files.get(fileId);
+			if (file != null)
+				for (int chunkNo = 1; chunkNo <= chunkCount; chunkNo++)
+					degrees[chunkNo - 1] = file.count(chunkNo);
+		}
+		return degrees;
+	}
+
+	/**
+	 * Waits for a chunk to be stored by at least degree peers. The future
+	 * completes with the degree reached, at once if it already is; cancelling
+	 * it drops the waiter.
+	 */
+	public CompletableFuture<Integer> awaitDegree(String fileId, int chunkNo, int degree) {
+		Stripe stripe = stripe(fileId);
+		Waiter waiter = new Waiter(chunkNo, degree);
+
+		synchronized (stripe) {
+			Degrees file = stripe.files.computeIfAbsent(fileId, k -> new Degrees());
+			int current = file.count(chunkNo);
+			if (current >= degree)
+				return CompletableFuture.completedFuture(current);
+			file.waiters.add(waiter);
+		}
+
+		waiter.future.whenComplete((d, e) -> {
+			synchronized (stripe) {
+				Degrees file = stripe.files.get(fileId);
+				if (file != null) {
+					file.waiters.remove(waiter);
+					if (file.isEmpty())
+						stripe.files.remove(fileId);
+				}
+			}
+		});
+		return waiter.future;
+	}
+
+	/**
+	 * Reads the snapshot, if there is one. Must be called before anything is
+	 * recorded. A snapshot of an older format is ignored, as the degrees are
+	 * learnt again from the STOREDs.
+	 *
+	 * @throws IOException
+	 */
+	public void load() throws IOException {
+		if (!Files.exists(snapshot))
+			return;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+			if (in.readInt() != SNAPSHOT_MAGIC) {
+				System.err.println("Ignoring " + snapshot + ", not a replication snapshot of this version.");
+				return;
+			}
+
+			int peers = in.readInt();
+			if (peers < 0 || peers > MAX_PEERS)
+				throw new IOException("Corrupt replication snapshot: " + snapshot);
+			for (int index = 0; index < peers; index++)
+				peerIndexes.put(in.readInt(), index);
+
+			for (int n = in.readInt(); n > 0; n--) {
+				String fileId = in.readUTF();
+				Degrees file = new Degrees();
+				file.words = in.readInt();
+				int length = in.readInt();
+				if (file.words < 1 || (file.words - 1) * 64 >= Math.max(peers, 1) || length < 0
+						|| length % file.words != 0 || length > (MAX_CHUNK_NO + 1) * file.words)
+					throw new IOException("Corrupt replication snapshot: " + snapshot);
+
+				file.bits = new long[length];
+				for (int i = 0; i < file.bits.length; i++)
+					file.bits[i] = in.readLong();
+
+				Stripe stripe = stripe(fileId);
+				synchronized (stripe) {
+					stripe.files.put(fileId, file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the snapshot, if anything changed since the last save.
+	 *
+	 * @throws IOException
+	 */
+	public void save() throws IOException {
+		if (!dirty)
+			return;
+		dirty = false;
+
+		Files.createDirectories(snapshot.getParent());
+		Path tmp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+		Map<String, Degrees> copy = new HashMap<String, Degrees>();
+		int[] peerIds;
+
+		synchronized (peerIndexes) {
+			peerIds = new int[peerIndexes.size()];
+			for (Map.Entry<Integer, Integer> peer : peerIndexes.entrySet())
+				peerIds[peer.getValue()] = peer.getKey();
+		}
+
+		for (Stripe stripe : stripes)
+			synchronized (stripe) {
+				for (Map.Entry<String, Degrees> entry : stripe.files.entrySet())
+					if (entry.getValue().hasPeers())
+						copy.put(entry.getKey(), entry.getValue().copy());
+			}
+
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp.toFile())))) {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(peerIds.length);
+			for (int peerId : peerIds)
+				out.writeInt(peerId);
+			out.writeInt(copy.size());
+			for (Map.Entry<String, Degrees> entry : copy.entrySet()) {
+				Degrees file = entry.getValue();
+				out.writeUTF(entry.getKey());
+				out.writeInt(file.words);
+				out.writeInt(file.bits.length);
+				for (long word : file.bits)
+					out.writeLong(word);
+			}
+		} catch (IOException e) {
+			dirty = true;
+			throw e;
+		}
+
+		Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @param assign
+	 *            Give the peer the next index if it has none
+	 * @return Dense index of a peer, or -1 if it has none
+	 */
+	private int peerIndex(int peerId, boolean assign) {
+		Integer index = peerIndexes.get(peerId);
+		if (index != null || !assign || peerId < 0)
+			return index == null ? -1 : index;
+
+		synchronized (peerIndexes) {
+			index = peerIndexes.get(peerId);
+			if (index == null) {
+				if (peerIndexes.size() >= MAX_PEERS) {
+					if (!full)
+						System.err.println("Tracking " + MAX_PEERS + " peers already, ignoring new peers.");
+					full = true;
+					return -1;
+				}
+				index = peerIndexes.size();
+				peerIndexes.put(peerId, index);
+			}
+			return index;
+		}
+	}
+
+	private Stripe stripe(String fileId) {
+		int h = fileId.hashCode();
+		return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+	}
+
+	private static final class Stripe {
+		final Map<String, Degrees> files = new HashMap<String, Degrees>();
+	}
+
+	/**
+	 * A backup waiting for a chunk to reach a degree.
+	 */
+	private static final class Waiter {
+		final int chunkNo;
+		final int degree;
+		final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+
+		Waiter(int chunkNo, int degree) {
+			this.chunkNo = chunkNo;
+			this.degree = degree;
+		}
+	}
+
+	/**
+	 * The peer bitsets of the chunks of one file: the bits of chunk n are
+	 * bits[n * words] to bits[n * words + words - 1]. Callers check that
+	 * chunkNo is within 0 to MAX_CHUNK_NO and peer is a valid index.
+	 */
+	private static final class Degrees {
+		int words = 1;
+		long[] bits = new long[0];
+		final List<Waiter> waiters = new ArrayList<Waiter>(0);
+
+		boolean set(int chunkNo, int peer) {
+			int word = peer >>> 6;
+			if (word >= words)
+				widen(word + 1);
+			int index = chunkNo * words + word;
+			if (index >= bits.length)
+				bits = Arrays.copyOf(bits,
+						Math.max(index + 1, Math.min(bits.length * 2, (MAX_CHUNK_NO + 1) * words)));
+
+			long mask = 1L << peer;
+			if ((bits[index] & mask) != 0)
+				return false;
+			bits[index] |= mask;
+			return true;
+		}
+
+		boolean clear(int chunkNo, int peer) {
+			int word = peer >>> 6;
+			int index = chunkNo * words + word;
+			if (word >= words || index >= bits.length)
+				return false;
+
+			long mask = 1L << peer;
+			if ((bits[index] & mask) == 0)
+				return false;
+			bits[index] &= ~mask;
+			return true;
+		}
+
+		int count(int chunkNo) {
+			int start = chunkNo * words;
+			if (chunkNo < 0 || start >= bits.length)
+				return 0;
+
+			int count = 0;
+			for (int i = start; i < start + words; i++)
+				count += Long.bitCount(bits[i]);
+			return count;
+		}
+
+		/**
+		 * Takes the waiters of a chunk satisfied by a degree.
+		 */
+		List<Waiter> reached(int chunkNo, int degree) {
+			List<Waiter> reached = null;
+
+			for (Iterator<Waiter> it = waiters.iterator(); it.hasNext();) {
+				Waiter waiter = it.next();
+				if (waiter.chunkNo == chunkNo && waiter.degree <= degree) {
+					if (reached == null)
+						reached = new ArrayList<Waiter>();
+					reached.add(waiter);
+					it.remove();
+				}
+			}
+
+			return reached;
+		}
+
+		void clearAll() {
+			bits = new long[0];
+			words = 1;
+		}
+
+		/**
+		 * @return true if there are no waiters and no chunk was ever stored
+		 */
+		boolean isEmpty() {
+			return waiters.isEmpty() && bits.length == 0;
+		}
+
+		boolean hasPeers() {
+			for (long word : bits)
+				if (word != 0)
+					return true;
+			return false;
+		}
+
+		Degrees copy() {
+			Degrees copy = new Degrees();
+			copy.words = words;
+			copy.bits = bits.clone();
+			return copy;
+		}
+
+		/**
+		 * Re-lays the bitsets with more words per chunk.
+		 */
+		private void widen(int newWords) {
+			int chunks = bits.length / words;
+			long[] wider = new long[chunks * newWords];
+
+			for (int chunk = 0; chunk < chunks; chunk++)
+				System.arraycopy(bits, chunk * words, wider, chunk * newWords, words);
+			bits = wider;
+			words = newWords;
+		}
+	}
+}
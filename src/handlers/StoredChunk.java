@@ -0,0 +1,77 @@
+package handlers;
+
+/**
+ * A chunk held by this peer, as listed by a ChunkStore and tracked by the
+ * ChunkCatalog.
+ */
+public class StoredChunk {
+	private final String fileId;
+	private final int chunkNo;
+	private final long size;
+	private final int desiredDegree;
+	private final long storedAt;
+	private volatile int perceivedDegree;
+
+	public StoredChunk(String fileId, int chunkNo, long size) {
+		this(fileId, chunkNo, size, 0, 1, System.currentTimeMillis());
+	}
+
+	public StoredChunk(String fileId, int chunkNo, long size, int desiredDegree, int perceivedDegree,
+			long storedAt) {
+		this.fileId = fileId;
+		this.chunkNo = chunkNo;
+		this.size = size;
+		this.desiredDegree = desiredDegree;
+		this.perceivedDegree = perceivedDegree;
+		this.storedAt = storedAt;
+	}
+
+	/**
+	 * @return fileId of the chunk
+	 */
+	public String getFileId() {
+		return fileId;
+	}
+
+	public int getChunkNo() {
+		return chunkNo;
+	}
+
+	/**
+	 * @return Size of the content in bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return Replication degree asked for in the PUTCHUNK, 0 if unknown
+	 */
+	public int getDesiredDegree() {
+		return desiredDegree;
+	}
+
+	/**
+	 * @return Number of peers known to store the chunk, this one included
+	 */
+	public int getPerceivedDegree() {
+		return perceivedDegree;
+	}
+
+	void setPerceivedDegree(int perceivedDegree) {
+		this.perceivedDegree = perceivedDegree;
+	}
+
+	/**
+	 * @return Time the chunk was stored, in ms since the epoch
+	 */
+	public long getStoredAt() {
+		return storedAt;
+	}
+
+	@Override
+	public String toString() {
+		return fileId + "." + String.format("%03d", chunkNo) + " (" + size + " bytes, degree " + perceivedDegree
+				+ "/" + desiredDegree + ")";
+	}
+}
@@ -0,0 +1,163 @@
+package handlers;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import peer.ProtocolScheduler;
+
+/**
+ * Keeps a peer from repeating an answer another peer already gave.
+ *
+ * Answers that every holder of a chunk could send, CHUNK for a GETCHUNK and
+ * PUTCHUNK after a REMOVED, are scheduled here with a random delay, keyed by
+ * message type and (fileId, chunkNo). When the same message from another peer
+ * is observed on MDR or MDB, the pending answer is cancelled; an answer asked
+ * for within window ms of such a message is not scheduled at all. A second
+ * request for an answer that is still pending is folded into it.
+ */
+public class SuppressionTracker {
+	private final ProtocolScheduler scheduler;
+	private final long window;
+	private final Map<MessageType, ChunkKeyMap<Entry>> entries = //
+			new EnumMap<MessageType, ChunkKeyMap<Entry>>(MessageType.class);
+	private long answered = 0;
+	private long suppressed = 0;
+
+	/**
+	 * @param scheduler
+	 *            Runs the answers, as blocking actions since they read the
+	 *            chunk store
+	 * @param window
+	 *            Time, in ms, an observed message keeps suppressing new answers
+	 */
+	public SuppressionTracker(ProtocolScheduler scheduler, long window) {
+		this.scheduler = scheduler;
+		this.window = window;
+
+		scheduler.getExecutor().scheduleWithFixedDelay(this::purge, window, window, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Schedules an answer after a random delay of 0 to maxDelay ms, unless it
+	 * is suppressed.
+	 *
+	 * @param type
+	 *            Type of the answer
+	 * @param fileId
+	 *            File of the chunk
+	 * @param chunkNo
+	 *            Number of the chunk
+	 * @param answer
+	 *            Sends the answer
+	 * @param maxDelay
+	 *            Maximum delay
+	 * @return false if the answer was suppressed or is already pending
+	 */
+	public synchronized boolean schedule(MessageType type, String fileId, int chunkNo, Runnable answer,
+			long maxDelay) {
+		ChunkKeyMap<Entry> map = entries.computeIfAbsent(type, t -> new ChunkKeyMap<Entry>());
+		Entry entry = map.get(fileId, chunkNo);
+
+		if (entry == null) {
+			entry = new Entry();
+			map.put(fileId, chunkNo, entry);
+		} else if (entry.pending != null || now() - entry.seenAt < window) {
+			suppressed++;
+			return false;
+		}
+
+		Entry scheduled = entry;
+		Object token = new Object();
+		entry.token = token;
+		entry.pending = scheduler.scheduleRandomBlocking(() -> {
+			synchronized (this) {
+				if (scheduled.token != token)
+					return;
+				scheduled.token = null;
+				scheduled.pending = null;
+				answered++;
+			}
+			answer.run();
+		}, maxDelay);
+		return true;
+	}
+
+	/**
+	 * Records a message from another peer, cancelling the pending answer with
+	 * the same type and chunk.
+	 */
+	public void observed(MessageType type, String fileId, int chunkNo) {
+		ScheduledFuture<?> pending;
+
+		synchronized (this) {
+			ChunkKeyMap<Entry> map = entries.computeIfAbsent(type, t -> new ChunkKeyMap<Entry>());
+			Entry entry = map.get(fileId, chunkNo);
+			if (entry == null) {
+				entry = new Entry();
+				map.put(fileId, chunkNo, entry);
+			}
+
+			entry.seenAt = now();
+			pending = entry.pending;
+			if (pending != null) {
+				entry.token = null;
+				entry.pending = null;
+				suppressed++;
+			}
+		}
+
+		if (pending != null)
+			pending.cancel(false);
+	}
+
+	/**
+	 * @return Number of answers sent
+	 */
+	public synchronized long getAnswered() {
+		return answered;
+	}
+
+	/**
+	 * @return Number of answers cancelled or not scheduled
+	 */
+	public synchronized long getSuppressed() {
+		return suppressed;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return answered + " answered, " + suppressed + " suppressed";
+	}
+
+	/**
+	 * Forgets the entries with no pending answer whose window is over.
+	 */
+	private synchronized void purge() {
+		long now = now();
+
+		for (ChunkKeyMap<Entry> map : entries.values()) {
+			List<Object[]> stale = new ArrayList<Object[]>();
+
+			map.forEach((fileId, chunkNo, entry) -> {
+				if (entry.pending == null && now - entry.seenAt >= window)
+					stale.add(new Object[] { fileId, chunkNo });
+			});
+			for (Object[] key : stale)
+				map.remove((String) key[0], (Integer) key[1]);
+		}
+	}
+
+	private static long now() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+	}
+
+	private static final class Entry {
+		long seenAt = Long.MIN_VALUE / 2;
+		ScheduledFuture<?> pending;
+		Object token;
+	}
+}
@@ -0,0 +1,128 @@
+package handlers;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the protocol version each known peer speaks and derives the version
+ * used for outgoing messages.
+ * 
+ * Peers announce their versions with HELLO on the MC channel. A peer that
+ * sends anything without having announced is taken to be a 1.0 peer. Since
+ * every message is multicast, the negotiated version is the highest one that
+ * this peer and every known peer support.
+ * 
+ * Only peers started with a version above 1.0 announce themselves unasked;
+ * every peer answers the HELLO of a peer that had not announced. Peers of the
+ * original 1.0 implementation read every MC message with fixed fields and fail
+ * on HELLO, so they cannot share the channels with a peer started above 1.0;
+ * peers of this implementation started with 1.0 can.
+ */
+public class VersionNegotiator {
+	private final ProtocolVersion max;
+	private final Map<Integer, ProtocolVersion> peers = new ConcurrentHashMap<Integer, ProtocolVersion>();
+	private final Set<Integer> announced = ConcurrentHashMap.newKeySet();
+	private volatile ProtocolVersion negotiated = ProtocolVersion.V1_0;
+
+	/**
+	 * @param max
+	 *            Highest version this peer speaks
+	 */
+	public VersionNegotiator(ProtocolVersion max) {
+		this.max = max;
+	}
+
+	/**
+	 * @return true if this peer accepts messages of version v
+	 */
+	public boolean isSupported(ProtocolVersion v) {
+		return v != null && v.compareTo(max) <= 0;
+	}
+
+	/**
+	 * @return Comma separated list of the versions this peer speaks, as sent in
+	 *         HELLO
+	 */
+	public String supportedList() {
+		StringBuilder sb = new StringBuilder();
+
+		for (ProtocolVersion v : ProtocolVersion.values()) {
+			if (isSupported(v)) {
+				if (sb.length() > 0)
+					sb.append(',');
+				sb.append(v);
+			}
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Records the versions announced by a peer in HELLO.
+	 * 
+	 * @param senderId
+	 *            Peer that sent HELLO
+	 * @param versions
+	 *            Comma separated list of versions
+	 * @return true if the peer had not announced itself before, even if it
+	 *         was already observed as a 1.0 peer
+	 */
+	public boolean announce(int senderId, String versions) {
+		ProtocolVersion best = ProtocolVersion.V1_0;
+
+		for (String text : versions.split(",")) {
+			ProtocolVersion v = ProtocolVersion.parse(text);
+			if (isSupported(v) && v.compareTo(best) > 0)
+				best = v;
+		}
+
+		peers.put(senderId, best);
+		renegotiate();
+		return announced.add(senderId);
+	}
+
+	/**
+	 * Records that a peer sent a message other than HELLO. Peers that never
+	 * announced themselves are 1.0 peers.
+	 * 
+	 * @param senderId
+	 *            Sender of the message
+	 */
+	public void observe(int senderId) {
+		if (peers.putIfAbsent(senderId, ProtocolVersion.V1_0) == null)
+			renegotiate();
+	}
+
+	private void renegotiate() {
+		ProtocolVersion common = peers.isEmpty() ? ProtocolVersion.V1_0 : max;
+
+		for (ProtocolVersion v : peers.values()) {
+			if (v.compareTo(common) < 0)
+				common = v;
+		}
+
+		negotiated = common;
+	}
+
+	/**
+	 * @return Highest version spoken by every known peer
+	 */
+	public ProtocolVersion negotiated() {
+		return negotiated;
+	}
+
+	/**
+	 * @param fileId
+	 *            FileId of the message to send
+	 * @return Version to send a message about fileId with. The binary header
+	 *         only carries 32-byte digests, so other fileIds stay on 1.0.
+	 */
+	public ProtocolVersion versionFor(String fileId) {
+		ProtocolVersion v = negotiated;
+
+		if (v.isBinary() && MessageCodec.isDigest(fileId))
+			return v;
+		return ProtocolVersion.V1_0;
+	}
+}
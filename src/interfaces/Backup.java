@@ -1,79 +1,122 @@
 package interfaces;
 
-import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.Closeable;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+public class Backup implements Closeable {
+	public static final int CHUNK_SIZE = 64000;
 
-public class Backup {
 	private String filepath; // used to get the file
+	private String fileId;
 	private int replicationLevel;
-	private ArrayList<Chunk> chunkFiles = new ArrayList<Chunk>();
-	private int READ_LENGTH = 64000;
+	private int READ_LENGTH = CHUNK_SIZE;
+	private int CHUNKS_PER_MAPPING = 256;
+	private FileChannel channel;
+	private long size;
+	private int chunkCount;
 
 	/**
-	 * Construtor do Backup.
-	 * 
+	 * Construtor do Backup. O ficheiro no  lido aqui: os chunks so criados 
+	 * medida que so pedidos, a partir de regies do ficheiro mapeadas em
+	 * memria.
+	 *
 	 * @param filepath
 	 *            Path para o ficheiro que se quer enviar
+	 * @param fileId
+	 *            Identificador do ficheiro, calculado a partir do contedo
 	 * @param replicationLevel
 	 *            Nvel de replicao. Quantos peers devem armazenar chunks
 	 *            deste ficheiro
-	 * @throws FileNotFoundException
-	 *             Quando no econtra o ficheiro pretendido
+	 * @throws IOException
+	 *             Quando no consegue abrir o ficheiro pretendido
 	 */
-	public Backup(String filepath, int replicationLevel) {
+	public Backup(String filepath, String fileId, int replicationLevel) throws IOException {
 		this.filepath = filepath;
+		this.fileId = fileId;
 		this.replicationLevel = replicationLevel;
-
-		splitFile();
+		this.channel = FileChannel.open(Paths.get(filepath), StandardOpenOption.READ);
+		this.size = channel.size();
+		this.chunkCount = (int) (size / READ_LENGTH) + 1;
 
 		sendingData();
 	}
 
 	/**
-	 * Retorna um array com os chunks que so necessrios enviar.
-	 * 
-	 * @return Array de chunks por enviar
+	 * Nmero de chunks do ficheiro. Se o tamanho do ficheiro for mltiplo do
+	 * tamanho dos chunks, o ltimo chunk tem tamanho 0.
+	 *
+	 * @return Nmero de chunks
+	 */
+	public int getChunkCount() {
+		return chunkCount;
+	}
+
+	/**
+	 * @return Tamanho do ficheiro em bytes
 	 */
-	public ArrayList<Chunk> getChunkFiles() {
-		return chunkFiles;
+	public long getSize() {
+		return size;
 	}
 
 	private void sendingData() {
-		System.out.println("Nmero de chunks: " + chunkFiles.size());
+		System.out.println("Nmero de chunks: " + chunkCount);
 	}
 
 	/**
-	 * Divide o ficheiro que se quer fazer backup em chunks e armazena-os em
-	 * chunkFiles. Enquanto o tamanho do ficheiro for maior que 0 tenta ler e
-	 * criar um chunk.
-	 * 
-	 * @throws IOException
+	 * Divide o ficheiro que se quer fazer backup em chunks,  medida que so
+	 * consumidos. Cada chunk  uma vista sobre uma regio mapeada do ficheiro,
+	 * por isso a memria usada no depende do tamanho do ficheiro.
+	 *
+	 * @return Iterador sobre os chunks, por ordem
 	 */
-	public void splitFile() {
-		File bckFile = new File(this.filepath);
-		int chunkNo = 0;
-		byte[] buffer = new byte[READ_LENGTH];
+	public Iterator<Chunk> chunks() {
+		return new Iterator<Chunk>() {
+			private int chunkNo = 0;
+			private MappedByteBuffer mapping;
+			private long mappingStart;
+
+			@Override
+			public boolean hasNext() {
+				return chunkNo < chunkCount;
+			}
 
-		try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(bckFile))) {
-			int chunkSize = 0;
+			@Override
+			public Chunk next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
 
-			while ((chunkSize = bis.read(buffer)) > 0) {
-				byte[] data = buffer.clone();
+				long offset = (long) chunkNo * READ_LENGTH;
+				int length = (int) Math.min(READ_LENGTH, size - offset);
 				chunkNo++;
 
-				if (chunkSize < READ_LENGTH) {
-					byte[] lastChunk = Arrays.copyOfRange(buffer, 0, chunkSize);
-					this.chunkFiles.add(new Chunk(filepath, chunkNo, replicationLevel, lastChunk));
-				} else
-					this.chunkFiles.add(new Chunk(filepath, chunkNo, replicationLevel, data));
+				try {
+					if (mapping == null || offset + length > mappingStart + mapping.capacity()) {
+						mappingStart = offset;
+						mapping = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+								Math.min((long) READ_LENGTH * CHUNKS_PER_MAPPING, size - offset));
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException("Error when tried to read from the file. Backup.chunks()", e);
+				}
+
+				int position = (int) (offset - mappingStart);
+				MappedByteBuffer view = mapping.duplicate();
+				view.limit(position + length).position(position);
+
+				return new Chunk(fileId, chunkNo, replicationLevel, view.slice());
 			}
-		} catch (IOException e) {
-			System.err.println("Error when tried to read from the file. Backup.splitFile()");
-		}
+		};
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
 	}
 }
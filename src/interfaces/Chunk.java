@@ -1,11 +1,16 @@
 package interfaces;
 
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 public class Chunk implements Comparable<Chunk> {
 	private String fileId;
 	private int replicationDegree;
 	private int chunkNumber;
-	private int MAX_CHUNK_SIZE = 64000;
-	private byte[] content = new byte[MAX_CHUNK_SIZE];
+	private byte[] content;
+	private ByteBuffer buffer;
+	private byte[] fingerprint;
 	private boolean checked;
 
 	public Chunk(String fileId, int chunkNumber, byte[] content) {
@@ -24,6 +29,18 @@ public class Chunk implements Comparable<Chunk> {
 		this.checked = false;
 	}
 
+	/**
+	 * Chunk whose content is a view over a buffer, e.g. a slice of a mapped
+	 * file, and is only copied if getContent() is called.
+	 */
+	public Chunk(String fileId, int chunkNumber, int replicationDegree, ByteBuffer buffer) {
+		this.fileId = fileId;
+		this.replicationDegree = replicationDegree;
+		this.chunkNumber = chunkNumber;
+		this.buffer = buffer;
+		this.checked = false;
+	}
+
 	@Override
 	public int compareTo(Chunk chunk2) {
 		return fileId.equals(chunk2.fileId) && chunkNumber == chunk2.chunkNumber ? 0
@@ -35,9 +52,53 @@ public class Chunk implements Comparable<Chunk> {
 	}
 
 	public byte[] getContent() {
+		if (content == null) {
+			content = new byte[buffer.remaining()];
+			buffer.duplicate().get(content);
+		}
 		return content;
 	}
 
+	/**
+	 * @return Read-only view of the content, without copying it
+	 */
+	public ByteBuffer getBuffer() {
+		if (buffer == null)
+			return ByteBuffer.wrap(content).asReadOnlyBuffer();
+		return buffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return Size of the content in bytes
+	 */
+	public int getSize() {
+		return buffer == null ? content.length : buffer.remaining();
+	}
+
+	/**
+	 * @return SHA-256 of the content, computed on the first call
+	 */
+	public byte[] getFingerprint() {
+		if (fingerprint == null)
+			fingerprint = fingerprint(getBuffer());
+		return fingerprint.clone();
+	}
+
+	/**
+	 * @param content
+	 *            Content to hash, from position to limit
+	 * @return SHA-256 of the content
+	 */
+	public static byte[] fingerprint(ByteBuffer content) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(content.duplicate());
+			return digest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
 	public String getFileId() {
 		return fileId;
 	}
@@ -49,7 +110,7 @@ public class Chunk implements Comparable<Chunk> {
 	/**
 	 * @return the check
 	 */
-	public boolean isChecked() {
+	public synchronized boolean isChecked() {
 		return checked;
 	}
 
@@ -57,7 +118,19 @@ public class Chunk implements Comparable<Chunk> {
 	 * @param check
 	 *            the check to set
 	 */
-	public void setChecked(boolean checked) {
+	public synchronized void setChecked(boolean checked) {
 		this.checked = checked;
 	}
+
+	/**
+	 * Marks the chunk as checked, atomically.
+	 * 
+	 * @return true if it was not checked yet
+	 */
+	public synchronized boolean check() {
+		if (checked)
+			return false;
+		checked = true;
+		return true;
+	}
 }
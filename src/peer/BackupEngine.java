@@ -0,0 +1,190 @@
+package peer;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import handlers.MessageCodec;
+import handlers.MessageType;
+import handlers.ReplicationTracker;
+import interfaces.Chunk;
+
+/**
+ * Sends the PUTCHUNKs of a backup with up to window chunks in flight.
+ * 
+ * Every chunk has its own retransmission timer, doubling from RETRY_DELAY on
+ * each of the MAX_ATTEMPTS sends. A chunk leaves the window as soon as the
+ * STORED messages seen on MC reach its replication degree, freeing the slot
+ * for the next chunk: each chunk waits on the ReplicationTracker for its
+ * degree.
+ * 
+ * If a set of known content is given, a chunk whose fingerprint is in it is
+ * first sent as a PUTREF carrying only the fingerprint. Peers that already
+ * store that content link it and answer STORED; if not enough do, the
+ * retransmissions carry the whole body. Fingerprints of the chunks that reach
+ * their replication degree are added to the set.
+ */
+public class BackupEngine {
+	private static final long RETRY_DELAY = 1000;
+	private static final int MAX_ATTEMPTS = 5;
+
+	private final MulticastChannel mdb;
+	private final MessageBuilder builder;
+	private final ReplicationTracker replication;
+	private final ScheduledExecutorService timers;
+	private final int window;
+	private final Set<String> knownContent;
+	private final Operation progress;
+	private final Semaphore slots;
+	private final Set<InFlight> inFlight = ConcurrentHashMap.newKeySet();
+	private volatile boolean failed = false;
+
+	/**
+	 * @param mdb
+	 *            MDB channel
+	 * @param builder
+	 *            Builder of the PUTCHUNK messages
+	 * @param replication
+	 *            Peers known to store each chunk, filled from the STORED
+	 *            messages
+	 * @param timers
+	 *            Runs the retransmission timers
+	 * @param window
+	 *            Maximum number of chunks waiting for STORED
+	 * @param knownContent
+	 *            Fingerprints of content already stored by other peers, or
+	 *            null to always send PUTCHUNK
+	 * @param progress
+	 *            Operation counting the chunks stored and the retransmissions
+	 */
+	public BackupEngine(MulticastChannel mdb, MessageBuilder builder, ReplicationTracker replication,
+			ScheduledExecutorService timers, int window, Set<String> knownContent, Operation progress) {
+		this.mdb = mdb;
+		this.builder = builder;
+		this.replication = replication;
+		this.timers = timers;
+		this.window = window;
+		this.knownContent = knownContent;
+		this.progress = progress;
+		this.slots = new Semaphore(window);
+	}
+
+	/**
+	 * Sends every chunk and waits until all of them are stored or one of them
+	 * runs out of attempts.
+	 * 
+	 * @param chunks
+	 *            Chunks of the file, in order
+	 * @return true if every chunk reached its replication degree
+	 * @throws InterruptedException
+	 */
+	public boolean run(Iterator<Chunk> chunks) throws InterruptedException {
+		try {
+			while (chunks.hasNext() && !failed) {
+				slots.acquire();
+				if (failed) {
+					slots.release();
+					break;
+				}
+
+				InFlight chunk = new InFlight(chunks.next());
+				inFlight.add(chunk);
+				chunk.send();
+			}
+
+			slots.acquire(window);
+			slots.release(window);
+		} finally {
+			for (InFlight chunk : inFlight)
+				chunk.cancel();
+		}
+
+		return !failed;
+	}
+
+	/**
+	 * A chunk waiting for its STORED messages.
+	 */
+	private class InFlight implements Runnable {
+		private final Chunk chunk;
+		private final ByteBuffer body;
+		private final String fingerprint;
+		private int attempts = 0;
+		private ScheduledFuture<?> timer;
+		private CompletableFuture<Integer> reached;
+
+		InFlight(Chunk chunk) {
+			this.chunk = chunk;
+			this.body = chunk.getBuffer();
+			this.fingerprint = knownContent == null ? null : MessageCodec.hex(chunk.getFingerprint());
+		}
+
+		synchronized void send() {
+			if (++attempts > 1)
+				progress.retried();
+			boolean reference = attempts == 1 && fingerprint != null && knownContent.contains(fingerprint);
+			MessageType type = reference ? MessageType.PUTREF : MessageType.PUTCHUNK;
+
+			System.out.println("\nSending multicast BACKUP: ");
+			System.out.println(type + " " + chunk.getFileId() + " " + chunk.getChunkNumber() + " "
+					+ chunk.getReplicationDegree() + " (attempt " + attempts + ") <CRLF><CRLF><body>");
+
+			builder.send(mdb, type, chunk.getFileId(), chunk.getChunkNumber(), chunk.getReplicationDegree(),
+					reference ? ByteBuffer.wrap(chunk.getFingerprint()) : body);
+
+			timer = timers.schedule(this, RETRY_DELAY << (attempts - 1), TimeUnit.MILLISECONDS);
+			if (reached == null) {
+				reached = replication.awaitDegree(chunk.getFileId(), chunk.getChunkNumber(),
+						chunk.getReplicationDegree());
+				reached.thenRun(() -> finish(true));
+			}
+		}
+
+		/**
+		 * Retransmission timeout.
+		 */
+		@Override
+		public void run() {
+			if (!inFlight.contains(this))
+				return;
+
+			if (attempts < MAX_ATTEMPTS)
+				send();
+			else {
+				System.err.println("Did not receive enough STORED messages for chunk " + chunk.getChunkNumber());
+				finish(false);
+			}
+		}
+
+		/**
+		 * Frees the slot of this chunk, once.
+		 */
+		void finish(boolean stored) {
+			if (!inFlight.remove(this))
+				return;
+
+			if (!stored)
+				failed = true;
+			else {
+				progress.chunkDone(chunk.getSize());
+				if (fingerprint != null)
+					knownContent.add(fingerprint);
+			}
+			cancel();
+			slots.release();
+		}
+
+		synchronized void cancel() {
+			if (timer != null)
+				timer.cancel(false);
+			if (reached != null)
+				reached.cancel(false);
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package peer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent table of the files backed up by this peer, indexed by path and by
+ * fileId. Every change is appended to a log on disk that is replayed at
+ * startup, so RESTORE and DELETE can find the fileId and chunk count of a path
+ * later. Once the log holds many more lines than records, it is rewritten with
+ * only the live records.
+ * 
+ * A record line is: fileId TAB chunkCount TAB repDegree TAB size TAB path. A
+ * removal line is: - TAB path
+ */
+public class BackupTable {
+	private final Path file;
+	private final Map<String, FileInformation> byPath = new HashMap<String, FileInformation>();
+	private final Map<String, FileInformation> byFileId = new HashMap<String, FileInformation>();
+	private int logged = 0;
+
+	/**
+	 * @param file
+	 *            File where the table is kept
+	 */
+	public BackupTable(Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * Reads the table from disk, if it exists.
+	 */
+	public synchronized void load() {
+		if (!Files.exists(file))
+			return;
+
+		try {
+			for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+				String[] fields = line.split("\t", 5);
+				if (fields.length == 5) {
+					remove(fields[4], false);
+					index(new FileInformation(fields[4], fields[0], Integer.parseInt(fields[2]),
+							Integer.parseInt(fields[1]), Long.parseLong(fields[3])));
+				} else if (fields.length == 2 && "-".equals(fields[0]))
+					remove(fields[1], false);
+				logged++;
+			}
+		} catch (IOException | NumberFormatException e) {
+			System.err.println("Failed to read the backup table " + file + ".");
+		}
+	}
+
+	/**
+	 * Adds or replaces the record of a path.
+	 * 
+	 * @param info
+	 *            New record
+	 * @return Previous record of the same path or null
+	 */
+	public synchronized FileInformation put(FileInformation info) {
+		FileInformation previous = remove(info.getFilePath(), false);
+		index(info);
+		append(info.getFileId() + "\t" + info.getChunkCount() + "\t" + info.getRepDegree() + "\t" + info.getSize()
+				+ "\t" + info.getFilePath());
+		return previous;
+	}
+
+	/**
+	 * Removes the record of a path.
+	 * 
+	 * @return Removed record or null
+	 */
+	public synchronized FileInformation remove(String filePath) {
+		return remove(filePath, true);
+	}
+
+	private FileInformation remove(String filePath, boolean save) {
+		FileInformation info = byPath.remove(key(filePath));
+
+		if (info != null) {
+			byFileId.remove(info.getFileId());
+			if (save)
+				append("-\t" + info.getFilePath());
+		}
+
+		return info;
+	}
+
+	public synchronized FileInformation getByPath(String filePath) {
+		return byPath.get(key(filePath));
+	}
+
+	public synchronized FileInformation getByFileId(String fileId) {
+		return byFileId.get(fileId);
+	}
+
+	public synchronized Collection<FileInformation> getAll() {
+		return new ArrayList<FileInformation>(byPath.values());
+	}
+
+	private void index(FileInformation info) {
+		byPath.put(key(info.getFilePath()), info);
+		byFileId.put(info.getFileId(), info);
+	}
+
+	private static String key(String filePath) {
+		return Paths.get(filePath).toAbsolutePath().normalize().toString();
+	}
+
+	/**
+	 * Appends a line to the log, or rewrites the log if it has grown to more
+	 * than twice the live records.
+	 */
+	private void append(String line) {
+		if (logged >= 2 * byPath.size() + 64) {
+			save();
+			return;
+		}
+
+		try {
+			if (file.getParent() != null)
+				Files.createDirectories(file.getParent());
+
+			try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+				out.write(line);
+				out.newLine();
+			}
+			logged++;
+		} catch (IOException e) {
+			System.err.println("Failed to write the backup table " + file + ".");
+		}
+	}
+
+	/**
+	 * Writes the live records to a temporary file and moves it over the log, so
+	 * a crash never leaves a half written table.
+	 */
+	private void save() {
+		List<FileInformation> records = new ArrayList<FileInformation>(byPath.values());
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+
+		try {
+			if (file.getParent() != null)
+				Files.createDirectories(file.getParent());
+
+			try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+				for (FileInformation info : records) {
+					out.write(info.getFileId() + "\t" + info.getChunkCount() + "\t" + info.getRepDegree() + "\t"
+							+ info.getSize() + "\t" + info.getFilePath());
+					out.newLine();
+				}
+			}
+
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			logged = records.size();
+		} catch (IOException e) {
+			System.err.println("Failed to write the backup table " + file + ".");
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package peer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of reusable direct ByteBuffers for datagram reception. When the pool is
+ * empty a new buffer is allocated; buffers released beyond the pool capacity
+ * are left to the garbage collector.
+ */
+public class BufferPool {
+	private final int bufferSize;
+	private final ArrayBlockingQueue<ByteBuffer> free;
+	private final AtomicLong allocated = new AtomicLong();
+
+	/**
+	 * @param buffers
+	 *            Maximum number of idle buffers kept
+	 * @param bufferSize
+	 *            Size of each buffer in bytes
+	 */
+	public BufferPool(int buffers, int bufferSize) {
+		this.bufferSize = bufferSize;
+		this.free = new ArrayBlockingQueue<ByteBuffer>(buffers);
+	}
+
+	/**
+	 * @return A cleared buffer, taken from the pool when possible
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buf = free.poll();
+
+		if (buf == null) {
+			buf = ByteBuffer.allocateDirect(bufferSize);
+			allocated.incrementAndGet();
+		}
+
+		buf.clear();
+		return buf;
+	}
+
+	/**
+	 * Hands a buffer back to the pool.
+	 * 
+	 * @param buf
+	 *            Buffer obtained from acquire()
+	 */
+	public void release(ByteBuffer buf) {
+		free.offer(buf);
+	}
+
+	/**
+	 * @return Number of buffers allocated since the pool was created
+	 */
+	public long getAllocated() {
+		return allocated.get();
+	}
+
+	@Override
+	public String toString() {
+		return "idle=" + free.size() + " allocated=" + allocated.get();
+	}
+}
@@ -10,11 +10,14 @@ public class Client {
 	private static String operation;
 	private static String operand_1 = "";
 	private static String operand_2 = "";
+	private static String operand_3 = "";
+	private static final int STATE_PAGE = 1000;
 
 	/**
 	 * This function sends the arguments to a function in the peer (selected by
 	 * acess point). The appropriate peer is selected with
-	 * registry.lookup(peer_ap).
+	 * registry.lookup(peer_ap). SUBMIT returns the id of the operation without
+	 * waiting for it; PROGRESS and CANCEL take that id.
 	 */
 	private static void callOperation() {
 		Registry registry;
@@ -24,7 +27,15 @@ public class Client {
 			PeerInterface stub = (PeerInterface) registry.lookup(peer_ap);
 
 			if ("STATE".equals(operation))
-				System.out.println(stub.operationState());
+				printState(stub);
+			else if ("SUBMIT".equals(operation)) {
+				long id = stub.submitOperation(operand_1, operand_2, operand_3);
+				System.out.println(id < 0 ? "Invalid operation." : "Operation " + id + " submitted.");
+			} else if ("PROGRESS".equals(operation))
+				System.out.print(stub.operationProgress(operand_1.isEmpty() ? -1 : Long.parseLong(operand_1)));
+			else if ("CANCEL".equals(operation))
+				System.out.println(stub.cancelOperation(Long.parseLong(operand_1)) ? "Cancelled."
+						: "No such operation running.");
 			else
 				stub.handleOperation(operation, operand_1, operand_2);
 		} catch (RemoteException e) {
@@ -36,6 +47,31 @@ public class Client {
 		}
 	}
 
+	/**
+	 * Imprime o estado do peer, pedido uma pgina de cada vez. Com um limite
+	 * no primeiro operando, imprime s os primeiros chunks.
+	 * 
+	 * @param stub
+	 *            Peer a consultar
+	 * @throws RemoteException
+	 */
+	private static void printState(PeerInterface stub) throws RemoteException {
+		int limit = operand_1.isEmpty() ? 0 : Integer.parseInt(operand_1);
+		StateSnapshot page = stub.getState(null, 0, limit > 0 ? limit : STATE_PAGE);
+		System.out.print(page);
+
+		if (limit > 0) {
+			if (page.hasMore())
+				System.out.println("    ... " + (page.getChunkCount() - page.getChunks().size()) + " more chunks");
+			return;
+		}
+
+		while (page.hasMore()) {
+			page = stub.getState(page.getNextFileId(), page.getNextChunkNo(), STATE_PAGE);
+			System.out.print(page);
+		}
+	}
+
 	/**
 	 * Verifica se os argumentos passados so vlidos.
 	 * 
@@ -49,9 +85,12 @@ public class Client {
 			operand_1 = args[2];
 		if (args.length >= 4)
 			operand_2 = args[3];
+		if (args.length >= 5)
+			operand_3 = args[4];
 
 		return ("BACKUP".equals(operation) || "RESTORE".equals(operation) || "DELETE".equals(operation)
-				|| "REMOVED".equals(operation) || "STATE".equals(operation));
+				|| "REMOVED".equals(operation) || "STATE".equals(operation) || "SUBMIT".equals(operation)
+				|| "PROGRESS".equals(operation) || "CANCEL".equals(operation));
 	}
 
 	/**
@@ -65,6 +104,9 @@ public class Client {
 			System.err.println("Usage: java TestApp <peer_ap> <operation>");
 			System.err.println("Usage: java TestApp <peer_ap> <operation> <opnd_1>");
 			System.err.println("Usage: java TestApp <peer_ap> <operation> <opnd_1> <opnd_2>");
+			System.err.println("Usage: java TestApp <peer_ap> SUBMIT <operation> <opnd_1> [<opnd_2>]");
+			System.err.println("Usage: java TestApp <peer_ap> PROGRESS [<id>]");
+			System.err.println("Usage: java TestApp <peer_ap> CANCEL <id>");
 		}
 
 		else if (processInput(args))
@@ -0,0 +1,69 @@
+package peer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A received datagram. The payload lives between position 0 and the limit of
+ * the buffer, which may belong to a BufferPool; release() hands it back once
+ * the message has been processed, after which it must not be read.
+ */
+public class Datagram {
+	private final ByteBuffer data;
+	private final BufferPool pool;
+	private final AtomicBoolean released = new AtomicBoolean();
+
+	Datagram(ByteBuffer data, BufferPool pool) {
+		this.data = data;
+		this.pool = pool;
+	}
+
+	/**
+	 * Wraps a byte array that is not pooled.
+	 * 
+	 * @param data
+	 *            Received bytes
+	 * @return Datagram over data
+	 */
+	public static Datagram wrap(byte[] data) {
+		return new Datagram(ByteBuffer.wrap(data), null);
+	}
+
+	/**
+	 * @return Read-only view of the payload, positioned at 0
+	 */
+	public ByteBuffer getData() {
+		return data.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return Payload size in bytes
+	 */
+	public int length() {
+		return data.limit();
+	}
+
+	/**
+	 * Copies the payload to a new array, or returns the backing array when it
+	 * already holds exactly the payload.
+	 * 
+	 * @return byte[] with the payload
+	 */
+	public byte[] toArray() {
+		if (data.hasArray() && data.arrayOffset() == 0 && data.array().length == data.limit())
+			return data.array();
+
+		byte[] copy = new byte[data.limit()];
+		data.duplicate().position(0).get(copy);
+		return copy;
+	}
+
+	/**
+	 * Returns the buffer to its pool. Calling it more than once, or on an
+	 * unpooled datagram, has no effect beyond the first call.
+	 */
+	public void release() {
+		if (pool != null && released.compareAndSet(false, true))
+			pool.release(data);
+	}
+}
@@ -0,0 +1,121 @@
+package peer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+import interfaces.Chunk;
+
+/**
+ * Rebuilds a restored file from chunks arriving in any order.
+ * 
+ * The file is written as target.part, preallocated to its final size, and each
+ * chunk body goes straight to offset (chunkNo - 1) * chunkSize with a
+ * positional write. A bitset records which chunks were written, so duplicates
+ * are skipped. The part file replaces the target only once every chunk is in.
+ */
+public class FileAssembler implements Closeable {
+	private final Path target;
+	private final Path part;
+	private final long size;
+	private final int chunkSize;
+	private final int chunkCount;
+	private final FileChannel channel;
+	private final BitSet written;
+	private boolean completed = false;
+
+	/**
+	 * @param target
+	 *            File to create
+	 * @param size
+	 *            Size of the file in bytes
+	 * @param chunkSize
+	 *            Size of every chunk but the last
+	 * @throws IOException
+	 *             If the part file cannot be created
+	 */
+	public FileAssembler(Path target, long size, int chunkSize) throws IOException {
+		this.target = target;
+		this.part = target.resolveSibling(target.getFileName() + ".part");
+		this.size = size;
+		this.chunkSize = chunkSize;
+		this.chunkCount = (int) (size / chunkSize) + 1;
+		this.written = new BitSet(chunkCount);
+
+		if (target.getParent() != null)
+			Files.createDirectories(target.getParent());
+		this.channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+
+		if (size > 0)
+			channel.write(ByteBuffer.allocate(1), size - 1);
+	}
+
+	/**
+	 * Writes a chunk at its place in the file. The content is written from the
+	 * chunk's buffer, so it may be a view that is only valid during the call.
+	 * 
+	 * @param chunk
+	 *            Chunk numbered from 1
+	 * @return false if the chunk is a duplicate or does not fit the file
+	 * @throws IOException
+	 */
+	public synchronized boolean write(Chunk chunk) throws IOException {
+		int index = chunk.getChunkNumber() - 1;
+		if (index < 0 || index >= chunkCount || written.get(index))
+			return false;
+
+		long offset = (long) index * chunkSize;
+		if (chunk.getSize() != Math.min(chunkSize, size - offset)) {
+			System.err.println("Chunk " + chunk.getChunkNumber() + " has the wrong size: " + chunk.getSize());
+			return false;
+		}
+
+		ByteBuffer content = chunk.getBuffer();
+		while (content.hasRemaining())
+			offset += channel.write(content, offset);
+
+		written.set(index);
+		return true;
+	}
+
+	/**
+	 * @return true if every chunk was written
+	 */
+	public synchronized boolean isComplete() {
+		return written.cardinality() == chunkCount;
+	}
+
+	/**
+	 * Moves the part file over the target.
+	 * 
+	 * @throws IOException
+	 *             If chunks are missing or the file cannot be moved
+	 */
+	public synchronized void complete() throws IOException {
+		if (!isComplete())
+			throw new IOException("Missing " + (chunkCount - written.cardinality()) + " chunks of " + target);
+
+		channel.close();
+		Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		completed = true;
+	}
+
+	/**
+	 * Discards the part file if the file was not completed.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (completed)
+			return;
+
+		channel.close();
+		Files.deleteIfExists(part);
+	}
+}
@@ -0,0 +1,61 @@
+package peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import handlers.MessageCodec;
+
+/**
+ * Computes the fileId of a file to back up: the SHA-256, in lowercase hex, of
+ * its absolute path, size, modification time and content. The content is
+ * streamed through the digest, so the file is read once per backup and never
+ * held in memory.
+ */
+public final class FileIdService {
+	private static final int READ_BUFFER = 1 << 20;
+
+	private FileIdService() {
+	}
+
+	/**
+	 * @param file
+	 *            File to identify
+	 * @return 64 character hex fileId
+	 * @throws IOException
+	 *             If the file cannot be read
+	 */
+	public static String fileId(Path file) throws IOException {
+		MessageDigest digest = sha256();
+		Path absolute = file.toAbsolutePath().normalize();
+
+		digest.update(absolute.toString().getBytes(StandardCharsets.UTF_8));
+		digest.update(ByteBuffer.allocate(16).putLong(Files.size(file))
+				.putLong(Files.getLastModifiedTime(file).toMillis()).array());
+
+		ByteBuffer buf = ByteBuffer.allocateDirect(READ_BUFFER);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			while (channel.read(buf) >= 0) {
+				buf.flip();
+				digest.update(buf);
+				buf.clear();
+			}
+		}
+
+		return MessageCodec.hex(digest.digest());
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+}
@@ -1,12 +1,40 @@
 package peer;
 
+/**
+ * Record of a file backed up by this peer.
+ */
 public class FileInformation {
 	String filePath;
-	String repDegree;
+	String fileId;
+	int repDegree;
+	int chunkCount;
+	long size;
 
-	public FileInformation(String filePath, String repDegree) {
+	public FileInformation(String filePath, String fileId, int repDegree, int chunkCount, long size) {
 		this.filePath = filePath;
+		this.fileId = fileId;
 		this.repDegree = repDegree;
+		this.chunkCount = chunkCount;
+		this.size = size;
 	}
 
+	public String getFilePath() {
+		return filePath;
+	}
+
+	public String getFileId() {
+		return fileId;
+	}
+
+	public int getRepDegree() {
+		return repDegree;
+	}
+
+	public int getChunkCount() {
+		return chunkCount;
+	}
+
+	public long getSize() {
+		return size;
+	}
 }
@@ -0,0 +1,158 @@
+package peer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Bounded, thread-safe queue between a MulticastListener and the Handler of the
+ * same channel. The Handler blocks on take() while there is nothing to process
+ * instead of spinning.
+ *
+ * @param <E>
+ *            Type of the queued messages
+ */
+public class IngressQueue<E> {
+	/**
+	 * What to do when the queue is full.
+	 */
+	public enum Policy {
+		/** The listener waits for room (backpressure). */
+		BLOCK,
+		/** The incoming message is discarded. */
+		DROP_NEWEST,
+		/** The oldest message is discarded to make room. */
+		DROP_OLDEST
+	}
+
+	private final BlockingQueue<E> queue;
+	private final Policy policy;
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicInteger highWatermark = new AtomicInteger();
+	private final Consumer<? super E> onDrop;
+
+	/**
+	 * @param capacity
+	 *            Maximum number of waiting messages
+	 * @param policy
+	 *            Policy applied when the queue is full
+	 */
+	public IngressQueue(int capacity, Policy policy) {
+		this(capacity, policy, msg -> {
+		});
+	}
+
+	/**
+	 * @param capacity
+	 *            Maximum number of waiting messages
+	 * @param policy
+	 *            Policy applied when the queue is full
+	 * @param onDrop
+	 *            Called with every message the policy discards
+	 */
+	public IngressQueue(int capacity, Policy policy, Consumer<? super E> onDrop) {
+		this.queue = new ArrayBlockingQueue<E>(capacity);
+		this.policy = policy;
+		this.onDrop = onDrop;
+	}
+
+	/**
+	 * Queues a message according to the configured policy.
+	 *
+	 * @param msg
+	 *            Message to queue
+	 * @return true if the message was accepted, false if it was dropped
+	 * @throws InterruptedException
+	 *             If the listener is interrupted while waiting for room
+	 */
+	public boolean offer(E msg) throws InterruptedException {
+		boolean added;
+
+		switch (policy) {
+		case BLOCK:
+			queue.put(msg);
+			added = true;
+			break;
+		case DROP_OLDEST:
+			while (!(added = queue.offer(msg))) {
+				E oldest = queue.poll();
+				if (oldest != null) {
+					dropped.incrementAndGet();
+					onDrop.accept(oldest);
+				}
+			}
+			break;
+		default:
+			added = queue.offer(msg);
+			break;
+		}
+
+		if (added) {
+			accepted.incrementAndGet();
+			highWatermark.accumulateAndGet(queue.size(), Math::max);
+		} else {
+			dropped.incrementAndGet();
+			onDrop.accept(msg);
+		}
+
+		return added;
+	}
+
+	/**
+	 * Waits until a message is available and removes it from the queue.
+	 *
+	 * @return Oldest queued message
+	 * @throws InterruptedException
+	 *             If the Handler is interrupted while waiting
+	 */
+	public E take() throws InterruptedException {
+		return queue.take();
+	}
+
+	/**
+	 * @return Oldest queued message or null if the queue is empty
+	 */
+	public E poll() {
+		return queue.poll();
+	}
+
+	public boolean contains(Object msg) {
+		return queue.contains(msg);
+	}
+
+	public boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	/**
+	 * @return Number of waiting messages
+	 */
+	public int depth() {
+		return queue.size();
+	}
+
+	public int getCapacity() {
+		return queue.size() + queue.remainingCapacity();
+	}
+
+	public long getAccepted() {
+		return accepted.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public int getHighWatermark() {
+		return highWatermark.get();
+	}
+
+	@Override
+	public String toString() {
+		return "depth=" + depth() + "/" + getCapacity() + " max=" + highWatermark.get() + " accepted=" + accepted.get()
+				+ " dropped=" + dropped.get() + " (" + policy + ")";
+	}
+}
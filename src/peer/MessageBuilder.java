@@ -0,0 +1,128 @@
+package peer;
+
+import java.nio.ByteBuffer;
+
+import handlers.MessageCodec;
+import handlers.MessageType;
+import handlers.ProtocolVersion;
+import handlers.VersionNegotiator;
+
+/**
+ * Builds and sends outgoing messages.
+ * 
+ * Headers are encoded into a buffer owned by the calling thread, starting from
+ * prefixes (type, version and sender) encoded once for this peer. The header
+ * and the body are then handed to the channel as separate buffers, so the
+ * body is never copied to join it with its header.
+ */
+public class MessageBuilder {
+	private static final int HEADER_CAPACITY = 1024;
+
+	private final int senderId;
+	private final VersionNegotiator negotiator;
+	private final byte[][][] prefixes;
+	private final ThreadLocal<ByteBuffer> headerBuffer = ThreadLocal
+			.withInitial(() -> ByteBuffer.allocate(HEADER_CAPACITY));
+	private final ThreadLocal<ByteBuffer[]> parts = ThreadLocal.withInitial(() -> new ByteBuffer[2]);
+
+	/**
+	 * @param senderId
+	 *            Id of this peer
+	 * @param negotiator
+	 *            Picks the version of each message
+	 */
+	public MessageBuilder(int senderId, VersionNegotiator negotiator) {
+		this.senderId = senderId;
+		this.negotiator = negotiator;
+
+		ProtocolVersion[] versions = ProtocolVersion.values();
+		MessageType[] types = MessageType.values();
+		this.prefixes = new byte[versions.length][types.length][];
+
+		for (ProtocolVersion v : versions) {
+			for (MessageType t : types)
+				prefixes[v.ordinal()][t.ordinal()] = MessageCodec.encodePrefix(v, t, senderId);
+		}
+	}
+
+	/**
+	 * Sends a message without body from this peer.
+	 * 
+	 * @see #send(MulticastChannel, MessageType, int, String, int, int, ByteBuffer)
+	 */
+	public void send(MulticastChannel channel, MessageType type, String fileId, int chunkNo, int replicationDeg) {
+		send(channel, type, senderId, fileId, chunkNo, replicationDeg, null);
+	}
+
+	/**
+	 * Sends a message from this peer.
+	 * 
+	 * @see #send(MulticastChannel, MessageType, int, String, int, int, ByteBuffer)
+	 */
+	public void send(MulticastChannel channel, MessageType type, String fileId, int chunkNo, int replicationDeg,
+			ByteBuffer body) {
+		send(channel, type, senderId, fileId, chunkNo, replicationDeg, body);
+	}
+
+	/**
+	 * Encodes the header with the version negotiated for fileId and sends it
+	 * followed by body.
+	 * 
+	 * @param channel
+	 *            Channel to send on
+	 * @param type
+	 *            Message type
+	 * @param sender
+	 *            Sender id written in the header
+	 * @param fileId
+	 *            FileId of the message
+	 * @param chunkNo
+	 *            Chunk number, ignored if the type has none
+	 * @param replicationDeg
+	 *            Replication degree, ignored if the type has none
+	 * @param body
+	 *            Remaining bytes are sent as the body, or null for none. The
+	 *            buffer is not modified.
+	 */
+	public void send(MulticastChannel channel, MessageType type, int sender, String fileId, int chunkNo,
+			int replicationDeg, ByteBuffer body) {
+		send(channel, negotiator.versionFor(fileId), type, sender, fileId, chunkNo, replicationDeg, body);
+	}
+
+	/**
+	 * Sends a message with a given version instead of the negotiated one.
+	 * 
+	 * @see #send(MulticastChannel, MessageType, int, String, int, int, ByteBuffer)
+	 */
+	public void send(MulticastChannel channel, ProtocolVersion version, MessageType type, int sender,
+			String fileId, int chunkNo, int replicationDeg, ByteBuffer body) {
+		ByteBuffer header = headerBuffer.get();
+
+		if (header.capacity() < MessageCodec.headerCapacity(fileId)) {
+			header = ByteBuffer.allocate(MessageCodec.headerCapacity(fileId));
+			headerBuffer.set(header);
+		}
+
+		header.clear();
+		if (sender == senderId)
+			header.put(prefixes[version.ordinal()][type.ordinal()]);
+		else
+			header.put(MessageCodec.encodePrefix(version, type, sender));
+		MessageCodec.encodeFields(header, version, type, fileId, chunkNo, replicationDeg);
+		header.flip();
+
+		if (body == null) {
+			channel.send(new ByteBuffer[] { header });
+			return;
+		}
+
+		ByteBuffer[] message = parts.get();
+		message[0] = header;
+		message[1] = body;
+		try {
+			channel.send(message);
+		} finally {
+			message[0] = message[1] = null;
+		}
+	}
+}
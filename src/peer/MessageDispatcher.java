@@ -0,0 +1,215 @@
+package peer;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import handlers.ChunkKeyMap;
+
+/**
+ * Runs the messages of a handler concurrently instead of one after the other
+ * on the handler thread.
+ *
+ * Messages about the same chunk still run in arrival order: while one runs,
+ * the next ones for its (fileId, chunkNo) wait in a queue of their own and are
+ * run by the same task. A message about a whole file, such as DELETE, runs
+ * after the messages of the file's chunks that came before it and before the
+ * ones that come after it; meanwhile those wait in a queue of the file.
+ *
+ * A semaphore caps the messages taken from the channel queue and not yet
+ * finished; when it is exhausted the handler thread waits, so a burst backs
+ * up into the channel queue and its overflow policy. Each channel gets its
+ * own dispatcher, so bulk MDB work cannot take the permits of MC.
+ */
+public class MessageDispatcher {
+	private final ExecutorService executor;
+	private final Semaphore permits;
+	private final int concurrency;
+	private final ChunkKeyMap<ArrayDeque<Runnable>> active = new ChunkKeyMap<ArrayDeque<Runnable>>();
+	/**
+	 * Files with chunks in active or a file message running or waiting. Guarded
+	 * by active.
+	 */
+	private final Map<String, FileState> files = new HashMap<String, FileState>();
+
+	/**
+	 * @param name
+	 *            Prefix of the worker thread names, virtual or not
+	 * @param threads
+	 *            Number of workers when virtual threads are not available
+	 * @param concurrency
+	 *            Maximum number of messages dispatched and not yet finished
+	 */
+	public MessageDispatcher(String name, int threads, int concurrency) {
+		this.executor = newExecutor(name, threads);
+		this.permits = new Semaphore(concurrency);
+		this.concurrency = concurrency;
+	}
+
+	/**
+	 * Runs a message after the earlier messages of the same chunk, or of the
+	 * same file if it is about the whole file. Waits while the dispatcher is at
+	 * its concurrency limit.
+	 *
+	 * @param fileId
+	 *            File of the message
+	 * @param chunkNo
+	 *            Chunk of the message, or -1 for a message about the whole file
+	 * @param message
+	 *            Analysis of the message
+	 */
+	public void dispatch(String fileId, int chunkNo, Runnable message) {
+		permits.acquireUninterruptibly();
+
+		Runnable task = () -> {
+			try {
+				message.run();
+			} catch (RuntimeException e) {
+				System.err.println("Failed to analyse a message: " + e);
+			} finally {
+				permits.release();
+			}
+		};
+
+		synchronized (active) {
+			FileState file = files.computeIfAbsent(fileId, f -> new FileState());
+
+			if (file.running || !file.blocked.isEmpty() || chunkNo < 0 && file.chunks > 0)
+				file.blocked.add(new Blocked(chunkNo, task));
+			else
+				start(fileId, file, chunkNo, task);
+		}
+	}
+
+	/**
+	 * @return Number of messages dispatched and not yet finished
+	 */
+	public int getInFlight() {
+		return concurrency - permits.availablePermits();
+	}
+
+	@Override
+	public String toString() {
+		return getInFlight() + "/" + concurrency + " in flight";
+	}
+
+	/**
+	 * Starts a message whose file is not blocked. Called holding active.
+	 */
+	private void start(String fileId, FileState file, int chunkNo, Runnable task) {
+		if (chunkNo < 0) {
+			file.running = true;
+			executor.execute(() -> runFileMessage(fileId, file, task));
+			return;
+		}
+
+		ArrayDeque<Runnable> waiting = active.get(fileId, chunkNo);
+		if (waiting != null) {
+			waiting.add(task);
+			return;
+		}
+		active.put(fileId, chunkNo, new ArrayDeque<Runnable>());
+		file.chunks++;
+		executor.execute(() -> drain(fileId, file, chunkNo, task));
+	}
+
+	/**
+	 * Starts the messages of a file that waited behind a file message, up to
+	 * the next file message, which starts only once the chunks are done. Called
+	 * holding active.
+	 */
+	private void unblock(String fileId, FileState file) {
+		while (!file.running && !file.blocked.isEmpty()) {
+			Blocked next = file.blocked.peek();
+			if (next.chunkNo < 0 && file.chunks > 0)
+				break;
+
+			file.blocked.poll();
+			start(fileId, file, next.chunkNo, next.task);
+		}
+
+		if (!file.running && file.chunks == 0 && file.blocked.isEmpty())
+			files.remove(fileId);
+	}
+
+	private void runFileMessage(String fileId, FileState file, Runnable task) {
+		task.run();
+
+		synchronized (active) {
+			file.running = false;
+			unblock(fileId, file);
+		}
+	}
+
+	/**
+	 * Runs first and then the messages queued behind it for the same chunk.
+	 */
+	private void drain(String fileId, FileState file, int chunkNo, Runnable first) {
+		Runnable next = first;
+
+		while (next != null) {
+			next.run();
+
+			synchronized (active) {
+				next = active.get(fileId, chunkNo).poll();
+				if (next == null) {
+					active.remove(fileId, chunkNo);
+					file.chunks--;
+					unblock(fileId, file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return An executor starting a virtual thread named name-n per task on a
+	 *         JDK that has them, otherwise a fixed pool of daemon threads
+	 */
+	private static ExecutorService newExecutor(String name, int threads) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+			ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+
+			Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) perTask.invoke(null, factory);
+		} catch (ReflectiveOperationException e) {
+			AtomicInteger count = new AtomicInteger();
+
+			return Executors.newFixedThreadPool(threads, r -> {
+				Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/**
+	 * Messages of a file being dispatched.
+	 */
+	private static final class FileState {
+		/** Chunks of the file in active */
+		int chunks;
+		/** Whether a file message is running */
+		boolean running;
+		/** Messages waiting for a file message to start or end */
+		final ArrayDeque<Blocked> blocked = new ArrayDeque<Blocked>();
+	}
+
+	private static final class Blocked {
+		final int chunkNo;
+		final Runnable task;
+
+		Blocked(int chunkNo, Runnable task) {
+			this.chunkNo = chunkNo;
+			this.task = task;
+		}
+	}
+}
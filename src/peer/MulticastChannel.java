@@ -1,78 +1,49 @@
 package peer;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.InetAddress;
-import java.net.MulticastSocket;
-import java.net.UnknownHostException;
-import java.util.Arrays;
-
-public class MulticastChannel {
-	private InetAddress group;
-	private int PORT;
-	private MulticastSocket socket = null;
+import java.nio.ByteBuffer;
 
+/**
+ * Multicast channel used by the Peer for MC, MDB and MDR.
+ */
+public interface MulticastChannel {
 	/**
-	 * Cria o canal para multicast.
+	 * Joins the multicast group.
 	 * 
-	 * @param ip
-	 * @param port
-	 * @throws UnknownHostException
+	 * @throws IOException
 	 */
-	public MulticastChannel(String ip, int port) throws UnknownHostException {
-		this.group = InetAddress.getByName(ip);
-		this.PORT = port;
-	}
+	void join() throws IOException;
 
 	/**
-	 * Fecha o socket.
+	 * Receives one datagram from the group. The returned Datagram must be
+	 * released once it is no longer needed.
 	 * 
+	 * @return Received Datagram
 	 * @throws IOException
 	 */
-	public void close() throws IOException {
-		socket.leaveGroup(group);
-		socket.close();
-	}
+	Datagram receive() throws IOException;
 
 	/**
-	 * Liga o socket ao grupo.
+	 * Sends toSend to the multicast group.
 	 * 
-	 * @throws IOException
+	 * @param toSend
+	 *            Bytes to send
 	 */
-	public void join() throws IOException {
-		socket = new MulticastSocket(PORT);
-		socket.joinGroup(group);
-	}
+	void send(byte[] toSend);
 
 	/**
-	 * Recebe da rede multicast.
+	 * Sends the remaining bytes of parts, in order, as a single datagram. The
+	 * parts are not modified.
 	 * 
-	 * @param buf
-	 *            buffer a ser preenchido
-	 * @return byte[] com data recebida
-	 * @throws IOException
+	 * @param parts
+	 *            Header and body of the message
 	 */
-	public byte[] receive() throws IOException {
-		byte[] buf = new byte[65536];
-		DatagramPacket packet = new DatagramPacket(buf, buf.length, group, PORT);
-		socket.receive(packet);
-		return Arrays.copyOfRange(packet.getData(), 0, packet.getLength());
-	}
+	void send(ByteBuffer[] parts);
 
 	/**
-	 * Envia um DatagramPacket com a informao de toSend para a rede multicast.
+	 * Leaves the group and closes the channel.
 	 * 
-	 * @param toSend
-	 *            Dados a ser enviados sob a forma de byte[]
 	 * @throws IOException
 	 */
-	public void send(byte[] toSend) {
-		DatagramPacket packet = new DatagramPacket(toSend, toSend.length, group, PORT);
-		try {
-			socket.send(packet);
-		} catch (IOException e) {
-			System.out.println("Falhou no envio do packet.");
-			e.printStackTrace();
-		}
-	}
+	void close() throws IOException;
 }
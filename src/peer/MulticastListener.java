@@ -1,12 +1,10 @@
 package peer;
 
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.Queue;
 
 public class MulticastListener implements Runnable {
 	private MulticastChannel multicastChannel;
-	private Queue<byte[]> receivedMsgs;
+	private IngressQueue<Datagram> receivedMsgs;
 
 	/**
 	 * Construtor do listener para o canal multicast.
@@ -15,18 +13,35 @@ public class MulticastListener implements Runnable {
 	 *            Multicast Channel ao qual se quer atribuir um Listener
 	 */
 	public MulticastListener(MulticastChannel multicastChannel) {
-		Queue<byte[]> receivedMsgs = new LinkedList<byte[]>();
+		this(multicastChannel, newQueue());
+	}
 
+	/**
+	 * Construtor do listener para o canal multicast.
+	 * 
+	 * @param multicastChannel
+	 *            Multicast Channel ao qual se quer atribuir um Listener
+	 * @param receivedMsgs
+	 *            Fila onde ficam as mensagens recebidas
+	 */
+	public MulticastListener(MulticastChannel multicastChannel, IngressQueue<Datagram> receivedMsgs) {
 		this.multicastChannel = multicastChannel;
 		this.receivedMsgs = receivedMsgs;
 	}
 
+	/**
+	 * @return Fila de entrada configurada em PeerConfig
+	 */
+	public static IngressQueue<Datagram> newQueue() {
+		return new IngressQueue<Datagram>(PeerConfig.QUEUE_CAPACITY, PeerConfig.QUEUE_POLICY, Datagram::release);
+	}
+
 	/**
 	 * Devolve todas as mensagens recebidas pelo socket.
 	 * 
 	 * @return Fila com todas as mensagens recebidas pela socket
 	 */
-	public Queue<byte[]> getQueue() {
+	public IngressQueue<Datagram> getQueue() {
 		return this.receivedMsgs;
 	}
 
@@ -36,13 +51,17 @@ public class MulticastListener implements Runnable {
 	public void run() {
 		while (!Thread.currentThread().isInterrupted()) {
 			try {
-				byte[] data = (multicastChannel.receive());
+				Datagram data = multicastChannel.receive();
 
-				if (data.length != 0)
-					receivedMsgs.add(data);
+				if (data.length() != 0)
+					receivedMsgs.offer(data);
+				else
+					data.release();
 			} catch (IOException e) {
 				System.out.println("There was an error when tried to receive from the multicast channel.");
 				break;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
 			}
 		}
 	}
@@ -0,0 +1,210 @@
+package peer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.Enumeration;
+
+/**
+ * Multicast channel over a DatagramChannel. Datagrams are received into direct
+ * buffers taken from a BufferPool and handed to the handlers without copying.
+ */
+public class NioMulticastChannel implements MulticastChannel {
+	private static final int MAX_DATAGRAM = 65536;
+	private static final ThreadLocal<ByteBuffer[]> GATHER = ThreadLocal.withInitial(() -> new ByteBuffer[2]);
+
+	private InetSocketAddress group;
+	private DatagramChannel channel = null;
+	private volatile DatagramChannel sender = null;
+	private NetworkInterface nif;
+	private volatile boolean closed = false;
+	private MembershipKey membership = null;
+	private BufferPool pool = new BufferPool(PeerConfig.POOL_BUFFERS, MAX_DATAGRAM);
+
+	/**
+	 * Cria o canal para multicast.
+	 * 
+	 * @param ip
+	 * @param port
+	 * @throws UnknownHostException
+	 */
+	public NioMulticastChannel(String ip, int port) throws UnknownHostException {
+		this.group = new InetSocketAddress(InetAddress.getByName(ip), port);
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		membership.drop();
+		channel.close();
+		sender.close();
+	}
+
+	@Override
+	public void join() throws IOException {
+		nif = multicastInterface();
+
+		channel = DatagramChannel.open(StandardProtocolFamily.INET);
+		channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, nif);
+		channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+		channel.bind(new InetSocketAddress(group.getPort()));
+		membership = channel.join(group.getAddress(), nif);
+
+		sender = openSender();
+	}
+
+	/**
+	 * Switches the receiving side to non-blocking mode and registers it for
+	 * reads. Sending keeps its own blocking channel, so a full socket buffer
+	 * never silently drops an outgoing datagram.
+	 * 
+	 * @param selector
+	 *            Selector of the reactor
+	 * @param attachment
+	 *            Object attached to the SelectionKey
+	 * @return Registered key
+	 * @throws IOException
+	 */
+	public SelectionKey register(Selector selector, Object attachment) throws IOException {
+		channel.configureBlocking(false);
+		return channel.register(selector, SelectionKey.OP_READ, attachment);
+	}
+
+	/**
+	 * Receives from the multicast group into a pooled buffer.
+	 * 
+	 * @return Received Datagram, to be released once processed, or null if the
+	 *         channel is non-blocking and nothing is pending
+	 * @throws IOException
+	 */
+	@Override
+	public Datagram receive() throws IOException {
+		ByteBuffer buf = pool.acquire();
+
+		try {
+			if (channel.receive(buf) == null) {
+				pool.release(buf);
+				return null;
+			}
+		} catch (IOException e) {
+			pool.release(buf);
+			throw e;
+		}
+
+		buf.flip();
+		return new Datagram(buf, pool);
+	}
+
+	@Override
+	public void send(byte[] toSend) {
+		send(new ByteBuffer[] { ByteBuffer.wrap(toSend) });
+	}
+
+	/**
+	 * Gather-writes parts as one datagram, without joining them first.
+	 */
+	@Override
+	public void send(ByteBuffer[] parts) {
+		ByteBuffer[] views = GATHER.get();
+
+		if (views.length < parts.length) {
+			views = new ByteBuffer[parts.length];
+			GATHER.set(views);
+		}
+		for (int i = 0; i < parts.length; i++)
+			views[i] = parts[i].duplicate();
+
+		try {
+			write(views, parts.length);
+		} catch (IOException e) {
+			System.out.println("Falhou no envio do packet.");
+			e.printStackTrace();
+		} finally {
+			Arrays.fill(views, null);
+		}
+	}
+
+	/**
+	 * Writes a datagram. A thread interrupted while writing, such as the one
+	 * of a cancelled operation, closes the sending channel; it is then opened
+	 * again, and the datagram is sent again unless this thread is the one
+	 * interrupted.
+	 */
+	private void write(ByteBuffer[] views, int count) throws IOException {
+		DatagramChannel current = sender;
+
+		try {
+			current.write(views, 0, count);
+		} catch (ClosedChannelException e) {
+			if (closed)
+				throw e;
+
+			DatagramChannel reopened = reopenSender(current);
+			if (Thread.currentThread().isInterrupted())
+				throw e;
+			reopened.write(views, 0, count);
+		}
+	}
+
+	private synchronized DatagramChannel reopenSender(DatagramChannel failed) throws IOException {
+		if (sender == failed)
+			sender = openSender();
+		return sender;
+	}
+
+	private DatagramChannel openSender() throws IOException {
+		DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+		channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, nif);
+		channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+		channel.connect(group);
+		return channel;
+	}
+
+	/**
+	 * @return Pool of receive buffers
+	 */
+	public BufferPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * Picks the network interface used for multicast.
+	 * 
+	 * @return Interface named by sdis.nif, the first multicast capable interface
+	 *         or the loopback interface
+	 * @throws SocketException
+	 */
+	static NetworkInterface multicastInterface() throws SocketException {
+		if (PeerConfig.NETWORK_INTERFACE != null)
+			return NetworkInterface.getByName(PeerConfig.NETWORK_INTERFACE);
+
+		NetworkInterface loopback = null;
+		Enumeration<NetworkInterface> nifs = NetworkInterface.getNetworkInterfaces();
+
+		while (nifs.hasMoreElements()) {
+			NetworkInterface nif = nifs.nextElement();
+
+			if (!nif.isUp())
+				continue;
+			if (nif.isLoopback())
+				loopback = nif;
+			else if (nif.supportsMulticast())
+				return nif;
+		}
+
+		return loopback;
+	}
+}
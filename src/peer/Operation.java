@@ -0,0 +1,191 @@
+package peer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A BACKUP, RESTORE, DELETE or RECLAIM submitted to the OperationManager, and
+ * its progress.
+ *
+ * The engines running the operation count the chunks done, their bytes and
+ * the retransmissions here; clients poll it through the PeerInterface. Status
+ * changes are synchronized, the counters are not and may be read while they
+ * move.
+ */
+public class Operation {
+	public enum Status {
+		QUEUED, RUNNING, DONE, FAILED, CANCELLED
+	}
+
+	/**
+	 * Work of an operation, run on a thread of the OperationManager.
+	 */
+	public interface Task {
+		/**
+		 * @param operation
+		 *            Operation being run, to report progress to
+		 * @return true if the operation succeeded
+		 * @throws InterruptedException
+		 *             If the operation was cancelled
+		 */
+		boolean run(Operation operation) throws InterruptedException;
+	}
+
+	private final long id;
+	private final String type;
+	private final String target;
+	private final AtomicInteger chunksDone = new AtomicInteger();
+	private final AtomicLong bytesDone = new AtomicLong();
+	private final AtomicInteger retries = new AtomicInteger();
+	private final CountDownLatch finished = new CountDownLatch(1);
+	private volatile int chunkCount = -1;
+	private Status status = Status.QUEUED;
+	private boolean cancelled = false;
+	private long startTime;
+	private long endTime;
+	private Future<?> future;
+
+	Operation(long id, String type, String target) {
+		this.id = id;
+		this.type = type;
+		this.target = target;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public String getTarget() {
+		return target;
+	}
+
+	public synchronized Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * @param chunkCount
+	 *            Number of chunks the operation will transfer
+	 */
+	public void setChunkCount(int chunkCount) {
+		this.chunkCount = chunkCount;
+	}
+
+	/**
+	 * Counts a chunk stored by enough peers, or received.
+	 *
+	 * @param bytes
+	 *            Size of the chunk
+	 */
+	public void chunkDone(long bytes) {
+		chunksDone.incrementAndGet();
+		bytesDone.addAndGet(bytes);
+	}
+
+	/**
+	 * Counts a PUTCHUNK or GETCHUNK sent again after a timeout.
+	 */
+	public void retried() {
+		retries.incrementAndGet();
+	}
+
+	public int getChunkCount() {
+		return chunkCount;
+	}
+
+	public int getChunksDone() {
+		return chunksDone.get();
+	}
+
+	public long getBytesDone() {
+		return bytesDone.get();
+	}
+
+	public int getRetries() {
+		return retries.get();
+	}
+
+	/**
+	 * @return Bytes transferred per second since the operation started, 0
+	 *         while it is queued
+	 */
+	public synchronized double getBytesPerSecond() {
+		if (startTime == 0)
+			return 0;
+
+		long end = endTime != 0 ? endTime : System.nanoTime();
+		double seconds = (end - startTime) / 1e9;
+		return seconds > 0 ? bytesDone.get() / seconds : 0;
+	}
+
+	/**
+	 * Waits until the operation is done, failed or cancelled.
+	 *
+	 * @return true if it succeeded
+	 * @throws InterruptedException
+	 */
+	public boolean await() throws InterruptedException {
+		finished.await();
+		return getStatus() == Status.DONE;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(id).append(' ').append(type).append(' ').append(target).append(' ').append(getStatus());
+
+		if (chunkCount >= 0)
+			sb.append(String.format(": %d/%d chunks, %d bytes, %.1f kB/s, %d retries", chunksDone.get(),
+					chunkCount, bytesDone.get(), getBytesPerSecond() / 1000, retries.get()));
+		return sb.toString();
+	}
+
+	synchronized void setFuture(Future<?> future) {
+		this.future = future;
+	}
+
+	/**
+	 * @return false if the operation was cancelled while queued
+	 */
+	synchronized boolean start() {
+		if (cancelled)
+			return false;
+
+		status = Status.RUNNING;
+		startTime = System.nanoTime();
+		return true;
+	}
+
+	synchronized void finish(boolean succeeded) {
+		status = cancelled ? Status.CANCELLED : succeeded ? Status.DONE : Status.FAILED;
+		endTime = System.nanoTime();
+		finished.countDown();
+	}
+
+	/**
+	 * Cancels the operation, interrupting it if it is running.
+	 *
+	 * @return true if it was cancelled while queued, and so is finished now
+	 */
+	synchronized boolean cancel() {
+		if (status != Status.QUEUED && status != Status.RUNNING)
+			return false;
+
+		cancelled = true;
+		if (future != null)
+			future.cancel(true);
+
+		if (status == Status.QUEUED) {
+			status = Status.CANCELLED;
+			finished.countDown();
+			return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,132 @@
+package peer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the operations asked for through RMI on a pool of its own, so the RMI
+ * call that submits one returns at once with its id.
+ *
+ * Up to threads operations run at the same time, each with its own engine and
+ * progress; the others wait in the queue. Finished operations are kept, for
+ * polling, until history newer ones have finished.
+ */
+public class OperationManager {
+	private final ExecutorService executor;
+	private final int history;
+	private final AtomicLong ids = new AtomicLong();
+	private final Map<Long, Operation> operations = new ConcurrentHashMap<Long, Operation>();
+	private final ArrayDeque<Long> finished = new ArrayDeque<Long>();
+
+	/**
+	 * @param threads
+	 *            Number of operations run at the same time
+	 * @param history
+	 *            Number of finished operations kept
+	 */
+	public OperationManager(int threads, int history) {
+		AtomicInteger count = new AtomicInteger();
+
+		this.executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "operation-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.history = history;
+	}
+
+	/**
+	 * Queues an operation.
+	 *
+	 * @param type
+	 *            BACKUP, RESTORE, DELETE or REMOVED
+	 * @param target
+	 *            File or amount of space the operation is about
+	 * @param task
+	 *            Work of the operation
+	 * @return The operation, to poll or wait on
+	 */
+	public Operation submit(String type, String target, Operation.Task task) {
+		Operation operation = new Operation(ids.incrementAndGet(), type, target);
+		FutureTask<Void> future = new FutureTask<Void>(() -> execute(operation, task), null);
+
+		operation.setFuture(future);
+		operations.put(operation.getId(), operation);
+		executor.execute(future);
+		return operation;
+	}
+
+	/**
+	 * @return The operation, or null if there is none with that id or it
+	 *         finished too long ago
+	 */
+	public Operation get(long id) {
+		return operations.get(id);
+	}
+
+	/**
+	 * @return The operations kept, oldest first
+	 */
+	public List<Operation> list() {
+		List<Operation> list = new ArrayList<Operation>(operations.values());
+		list.sort(Comparator.comparingLong(Operation::getId));
+		return list;
+	}
+
+	/**
+	 * Cancels an operation: a queued one never runs, a running one is
+	 * interrupted and stops at its next wait.
+	 *
+	 * @return false if there is no such operation or it already finished
+	 */
+	public boolean cancel(long id) {
+		Operation operation = operations.get(id);
+		if (operation == null)
+			return false;
+
+		Operation.Status status = operation.getStatus();
+		if (status != Operation.Status.QUEUED && status != Operation.Status.RUNNING)
+			return false;
+
+		if (operation.cancel())
+			retire(operation);
+		return true;
+	}
+
+	private void execute(Operation operation, Operation.Task task) {
+		if (!operation.start())
+			return;
+
+		boolean succeeded = false;
+		try {
+			succeeded = task.run(operation);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			System.err.println("Operation " + operation.getId() + " failed: " + e);
+		} finally {
+			operation.finish(succeeded);
+			retire(operation);
+		}
+	}
+
+	/**
+	 * Forgets the oldest finished operations beyond history.
+	 */
+	private void retire(Operation operation) {
+		synchronized (finished) {
+			finished.add(operation.getId());
+			while (finished.size() > history)
+				operations.remove(finished.poll());
+		}
+	}
+}
@@ -1,9 +1,9 @@
 package peer;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.rmi.RemoteException;
@@ -11,27 +11,56 @@ import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.concurrent.ThreadLocalRandom;
-
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import handlers.CachingChunkStore;
+import handlers.CatalogChunkStore;
+import handlers.ChunkCatalog;
+import handlers.ChunkStore;
+import handlers.ContentStore;
+import handlers.FileChunkStore;
+import handlers.Handler;
 import handlers.McHandler;
 import handlers.MdbHandler;
 import handlers.MdrHandler;
+import handlers.MessageType;
+import handlers.PackChunkStore;
+import handlers.ProtocolVersion;
+import handlers.ReclaimPlanner;
+import handlers.ReplicationTracker;
+import handlers.StoredChunk;
+import handlers.SuppressionTracker;
+import handlers.VersionNegotiator;
 import interfaces.Backup;
 import interfaces.Chunk;
 
 public class Peer extends UnicastRemoteObject implements PeerInterface {
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * Atraso mximo, em ms, antes de responder a um HELLO.
+	 */
+	private static final long MAX_HELLO_DELAY = 400;
+
 	private static MulticastChannel mc;
 	private static MulticastChannel mdb;
 	private static MulticastChannel mdr;
 
+	private static IngressQueue<Datagram> mcQueue;
+	private static IngressQueue<Datagram> mdbQueue;
+	private static IngressQueue<Datagram> mdrQueue;
+
 	private static MulticastListener mcListener;
 	private static MulticastListener mdbListener;
 	private static MulticastListener mdrListener;
 
+	private static Reactor reactor;
+
 	private static McHandler mcHandler;
 	private static MdbHandler mdbHandler;
 	private static MdrHandler mdrHandler;
@@ -42,22 +71,70 @@ public class Peer extends UnicastRemoteObject implements PeerInterface {
 	private static Thread mcHandler_Thread;
 	private static Thread mdbHandler_Thread;
 	private static Thread mdrHandler_Thread;
+	private static Thread reactor_Thread;
 
 	private static int PEER_ID;
-	private static double VERSION;
+	private static ProtocolVersion VERSION;
+	private static VersionNegotiator negotiator = new VersionNegotiator(ProtocolVersion.V1_0);
+	private static MessageBuilder messageBuilder;
+	private static AtomicBoolean helloPending = new AtomicBoolean();
+	private static ProtocolScheduler scheduler = new ProtocolScheduler(PeerConfig.TIMER_THREADS, PeerConfig.IO_THREADS);
+	private static SuppressionTracker suppression = new SuppressionTracker(scheduler,
+			PeerConfig.SUPPRESSION_WINDOW);
+	private static OperationManager operations = new OperationManager(PeerConfig.OPERATION_THREADS,
+			PeerConfig.OPERATION_HISTORY);
+	private static BackupTable backupTable = new BackupTable(Paths.get(PeerConfig.BACKUP_TABLE));
+	private static CatalogChunkStore chunkStore;
+	private static TcpChunkChannel tcpChunkChannel;
+	private static ReplicationTracker replication = new ReplicationTracker(
+			Paths.get(PeerConfig.CATALOG_DIR, "replication.snapshot"));
+	private static Set<String> knownContent = Collections
+			.newSetFromMap(Collections.synchronizedMap(new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+					return size() > PeerConfig.KNOWN_CONTENT;
+				}
+			}));
 
 	protected Peer() throws RemoteException {
 		super();
 	}
 
+	/**
+	 * Cria as filas de entrada de cada canal.
+	 */
+	private static void initializeQueues() {
+		mcQueue = MulticastListener.newQueue();
+		mdbQueue = MulticastListener.newQueue();
+		mdrQueue = MulticastListener.newQueue();
+	}
+
+	/**
+	 * Cria os Handlers dos canais e, com sdis.dispatch, os MessageDispatchers
+	 * que analisam as suas mensagens.
+	 */
+	private static void createHandlers() {
+		mcHandler = new McHandler(mcQueue, PEER_ID, replication, suppression);
+		mdbHandler = new MdbHandler(mdbQueue, PEER_ID, replication, scheduler, suppression,
+				PeerConfig.STORE_DELAY);
+		mdrHandler = new MdrHandler(mdrQueue, PEER_ID, suppression);
+
+		if (PeerConfig.DISPATCH) {
+			mcHandler.setDispatcher(
+					new MessageDispatcher("mc-dispatch", PeerConfig.DISPATCH_THREADS, PeerConfig.DISPATCH_CONCURRENCY));
+			mdbHandler.setDispatcher(
+					new MessageDispatcher("mdb-dispatch", PeerConfig.DISPATCH_THREADS, PeerConfig.DISPATCH_CONCURRENCY));
+			mdrHandler.setDispatcher(
+					new MessageDispatcher("mdr-dispatch", PeerConfig.DISPATCH_THREADS, PeerConfig.DISPATCH_CONCURRENCY));
+		}
+	}
+
 	/**
 	 * Inicia os Threads dos Handlers.
 	 */
 	private static void initializeHandlers() {
-		mcHandler = new McHandler(mcListener.getQueue(), PEER_ID);
-		mdbHandler = new MdbHandler(mdbListener.getQueue(), PEER_ID);
-		mdrHandler = new MdrHandler(mdrListener.getQueue(), PEER_ID);
-
 		mcHandler_Thread = new Thread(mcHandler);
 		mdbHandler_Thread = new Thread(mdbHandler);
 		mdrHandler_Thread = new Thread(mdrHandler);
@@ -71,9 +148,9 @@ public class Peer extends UnicastRemoteObject implements PeerInterface {
 	 * Inicia os Threads dos Listeners.
 	 */
 	private static void initializeListeners() {
-		mcListener = new MulticastListener(mc);
-		mdbListener = new MulticastListener(mdb);
-		mdrListener = new MulticastListener(mdr);
+		mcListener = new MulticastListener(mc, mcQueue);
+		mdbListener = new MulticastListener(mdb, mdbQueue);
+		mdrListener = new MulticastListener(mdr, mdrQueue);
 
 		mcListener_Thread = new Thread(mcListener);
 		mdbListener_Thread = new Thread(mdbListener);
@@ -85,16 +162,36 @@ public class Peer extends UnicastRemoteObject implements PeerInterface {
 	}
 
 	/**
-	 * Junta dois byte arrays.
+	 * Inicia o Reactor, que substitui os Threads dos Listeners e dos Handlers
+	 * por um nico Selector e um pool de workers.
 	 * 
-	 * @param first
-	 *            array para colocar no inicio do novo array
-	 * @param second
-	 *            array para colocar no fim do novo array
-	 * @return Array = first + second
+	 * @throws IOException
+	 *             Falha ao abrir o Selector
+	 */
+	private static void initializeReactor() throws IOException {
+		reactor = new Reactor(PeerConfig.REACTOR_WORKERS);
+		reactor.register((NioMulticastChannel) mc, mcHandler);
+		reactor.register((NioMulticastChannel) mdb, mdbHandler);
+		reactor.register((NioMulticastChannel) mdr, mdrHandler);
+
+		reactor_Thread = new Thread(reactor);
+		reactor_Thread.start();
+	}
+
+	/**
+	 * Cria um canal multicast com o transporte escolhido em sdis.transport.
+	 * 
+	 * @param ip
+	 *            Endereo do grupo
+	 * @param port
+	 *            Porta do grupo
+	 * @return Canal por ligar
+	 * @throws UnknownHostException
 	 */
-	private static byte[] joinArrays(byte[] first, byte[] second) {
-		return ByteBuffer.wrap(new byte[first.length + second.length]).put(first).put(second).array();
+	private static MulticastChannel createChannel(String ip, int port) throws UnknownHostException {
+		if (PeerConfig.REACTOR || "nio".equals(PeerConfig.TRANSPORT))
+			return new NioMulticastChannel(ip, port);
+		return new SocketMulticastChannel(ip, port);
 	}
 
 	/**
@@ -109,20 +206,113 @@ public class Peer extends UnicastRemoteObject implements PeerInterface {
 		mdr.join();
 	}
 
+	/**
+	 * @return Negociador das verses do protocolo faladas pelos peers
+	 */
+	public static VersionNegotiator getNegotiator() {
+		return negotiator;
+	}
+
+	/**
+	 * @return Tabela dos ficheiros de que este peer fez backup
+	 */
+	public static BackupTable getBackupTable() {
+		return backupTable;
+	}
+
+	/**
+	 * @return Armazm dos chunks guardados neste peer
+	 */
+	public static CatalogChunkStore getChunkStore() {
+		return chunkStore;
+	}
+
+	/**
+	 * Guarda em disco os graus de replicao vistos nas mensagens STORED.
+	 */
+	private static void saveReplication() {
+		try {
+			replication.save();
+		} catch (IOException e) {
+			System.err.println("Failed to save the replication degrees.");
+		}
+	}
+
+	/**
+	 * Cria o ChunkStore escolhido em sdis.store, com a cache de leitura e o
+	 * catlogo dos chunks.
+	 */
+	private static CatalogChunkStore createChunkStore() throws IOException {
+		ChunkStore backend;
+
+		if ("pack".equals(PeerConfig.CHUNK_STORE))
+			backend = new PackChunkStore(Paths.get(PeerConfig.PACK_DIR), PeerConfig.PACK_SEGMENT_SIZE);
+		else
+			backend = new FileChunkStore(Paths.get("chunks"), new ContentStore(Paths.get(PeerConfig.CONTENT_DIR)),
+					PeerConfig.NAME_CACHE_SIZE);
+
+		if (PeerConfig.CACHE_BYTES > 0)
+			backend = new CachingChunkStore(backend, PeerConfig.CACHE_BYTES, PeerConfig.CACHE_READ_AHEAD);
+
+		return new CatalogChunkStore(backend, new ChunkCatalog(Paths.get(PeerConfig.CATALOG_DIR)));
+	}
+
+	/**
+	 * Anuncia as verses do protocolo que este peer fala. O formato da mensagem
+	 * : HELLO 1.0 SenderId Versions CRLF;CRLF
+	 */
+	public static void sendHello() {
+		messageBuilder.send(mc, MessageType.HELLO, negotiator.supportedList(), -1, -1);
+	}
+
+	/**
+	 * Responde ao HELLO de um peer que ainda no se tinha anunciado, depois de
+	 * um atraso aleatrio. Tambm um peer 1.0 responde: se h HELLO nos canais,
+	 * no h neles peers da implementao original. Os HELLO que chegam durante
+	 * o atraso so respondidos pelo mesmo envio, para que um peer que acaba de
+	 * entrar no responda uma vez a cada peer que lhe respondeu.
+	 */
+	public static void answerHello() {
+		if (helloPending.compareAndSet(false, true))
+			scheduler.scheduleRandom(() -> {
+				helloPending.set(false);
+				sendHello();
+			}, MAX_HELLO_DELAY);
+	}
+
 	/**
 	 * O formato da mensagem para enviar um chunk :: CHUNK Version SenderId
 	 * FileId ChunkNo CRLF;CRLF;Body
+	 * 
+	 * @param c
+	 *            Chunk a enviar
 	 */
-	public static void sendChunks() {
-		while (!mcHandler.getChunksToSend().isEmpty()) {
-			Chunk c = mcHandler.getChunksToSend().poll();
-			String cnfrmtn_msg = "CHUNK" + " " + VERSION + " " + PEER_ID + " " + c.getFileId() + " "
-					+ c.getChunkNumber() + " " + "\r\n" + "\r\n";
-			byte[] confirmation = new byte[0];
-			confirmation = joinArrays(cnfrmtn_msg.getBytes(), c.getContent());
+	public static void sendChunk(Chunk c) {
+		messageBuilder.send(mdr, MessageType.CHUNK, c.getFileId(), c.getChunkNumber(), -1, c.getBuffer());
+	}
 
-			mdr.send(confirmation);
-		}
+	/**
+	 * Envia um chunk por TCP a quem o pediu num GETCHUNK da verso 2.1 e anuncia
+	 * no MDR s o cabealho do CHUNK, para os outros peers no o enviarem
+	 * tambm. Se a ligao falhar, o chunk inteiro segue pelo MDR. O envio 
+	 * feito por uma thread do TcpChunkChannel, para no ocupar a do timer.
+	 * 
+	 * @param c
+	 *            Chunk a enviar
+	 * @param endpoint
+	 *            Endpoint TCP indicado no GETCHUNK
+	 */
+	public static void sendChunk(Chunk c, InetSocketAddress endpoint) {
+		TcpChunkChannel.sendLater(endpoint, c, delivered -> {
+			if (delivered)
+				messageBuilder.send(mdr, ProtocolVersion.V2_1, MessageType.CHUNK, PEER_ID, c.getFileId(),
+						c.getChunkNumber(), -1, null);
+			else {
+				System.err.println("Failed to send chunk " + c.getChunkNumber() + " to " + endpoint + ", using MDR.");
+				messageBuilder.send(mdr, ProtocolVersion.V2_0, MessageType.CHUNK, PEER_ID, c.getFileId(),
+						c.getChunkNumber(), -1, c.getBuffer());
+			}
+		});
 	}
 
 	/**
@@ -130,104 +320,159 @@ public class Peer extends UnicastRemoteObject implements PeerInterface {
 	 * CRLF;CRLF
 	 */
 	public static void sendStored() {
-		for (Chunk c : mdbHandler.getChunksReceived()) {
-			if (!c.isChecked()) {
-				String cnfrmtn_msg = "STORED" + " " + VERSION + " " + PEER_ID + " " + c.getFileId() + " "
-						+ c.getChunkNumber() + " " + "\r\n" + "\r\n";
-				byte[] confirmation = cnfrmtn_msg.getBytes();
-
-				mc.send(confirmation);
-				c.setChecked(true);
-			}
-		}
+		for (Chunk c : mdbHandler.getChunksReceived())
+			if (c.check())
+				sendStored(c);
 	}
 
-	public static void sendRetransmission(int senderId) {
-		while (!mcHandler.getChunksToRetransmit().isEmpty()) {
-			System.out.println("\nSending multicast REMOVED: ");
-			Chunk c = mcHandler.getChunksToRetransmit().poll();
-			String outMessage = "PUTCHUNK" + " " + VERSION + " " + senderId + " " + c.getFileId() + " "
-					+ c.getChunkNumber() + " " + c.getReplicationDegree();
-			System.out.println(outMessage + " <CRLF><CRLF><body>");
-			outMessage += " " + "\r\n" + "\r\n";
+	/**
+	 * Envia o STORED de um chunk.
+	 * 
+	 * @param c
+	 *            Chunk guardado
+	 */
+	public static void sendStored(Chunk c) {
+		messageBuilder.send(mc, MessageType.STORED, c.getFileId(), c.getChunkNumber(), -1);
+	}
+
+	/**
+	 * Reenvia por PUTCHUNK um chunk removido por outro peer.
+	 * 
+	 * @param c
+	 *            Chunk a reenviar
+	 * @param senderId
+	 *            Peer que enviou a mensagem Removed
+	 */
+	public static void sendRetransmission(Chunk c, int senderId) {
+		System.out.println("\nSending multicast REMOVED: ");
+		System.out.println("PUTCHUNK " + senderId + " " + c.getFileId() + " " + c.getChunkNumber() + " "
+				+ c.getReplicationDegree() + " <CRLF><CRLF><body>");
 
-			byte[] buffer = new byte[0];
-			buffer = joinArrays(outMessage.getBytes(), c.getContent());
+		messageBuilder.send(mdb, MessageType.PUTCHUNK, senderId, c.getFileId(), c.getChunkNumber(),
+				c.getReplicationDegree(), c.getBuffer());
+	}
 
-			pauseThread(400);
+	/**
+	 * The client evokes this function through RMI. It submits the operation
+	 * and waits until it finishes.
+	 */
+	public void handleOperation(String operation, String arg1, String arg2) throws RemoteException {
+		Operation submitted = submit(operation, arg1, arg2);
+		if (submitted == null)
+			return;
 
-			if (!mdbHandler.checkIfReceivedRetransmission(buffer)) {
-				mdb.send(buffer);
-			}
+		try {
+			submitted.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * The client evokes this function through RMI. It submits the operation
+	 * and returns its id at once.
+	 */
+	public long submitOperation(String operation, String arg1, String arg2) throws RemoteException {
+		Operation submitted = submit(operation, arg1, arg2);
+		return submitted == null ? -1 : submitted.getId();
+	}
+
+	/**
+	 * Progresso de uma operao, ou de todas as operaes guardadas se id for
+	 * negativo.
+	 */
+	public String operationProgress(long id) throws RemoteException {
+		if (id >= 0) {
+			Operation operation = operations.get(id);
+			return (operation == null ? "No operation " + id + "." : operation.toString()) + "\n";
 		}
 
+		String progressMsg = "";
+		for (Operation operation : operations.list())
+			progressMsg += operation + "\n";
+		return progressMsg;
 	}
 
 	/**
-	 * The client evokes this function through RMI. It then reads the operation
-	 * argument and calls the apropriate method.
+	 * Cancela uma operao  espera ou a decorrer.
 	 */
-	public void handleOperation(String operation, String arg1, String arg2) throws RemoteException {
+	public boolean cancelOperation(long id) throws RemoteException {
+		return operations.cancel(id);
+	}
+
+	/**
+	 * L os argumentos da operao e entrega-a ao OperationManager.
+	 * 
+	 * @return Operao submetida, ou null se a operao no for vlida
+	 */
+	private Operation submit(String operation, String arg1, String arg2) {
 		switch (operation) {
 		case "BACKUP":
 			int replicationDegree = Integer.parseInt(arg2);
-			operationBackup(arg1, replicationDegree);
-			break;
+			return operations.submit(operation, arg1, progress -> operationBackup(arg1, replicationDegree, progress));
 		case "RESTORE":
-			operationRestore(arg1);
-			break;
+			return operations.submit(operation, arg1, progress -> operationRestore(arg1, progress));
 		case "DELETE":
-			operationDelete(arg1);
-			break;
+			return operations.submit(operation, arg1, progress -> operationDelete(arg1));
 		case "REMOVED":
 			int spaceToFree = Integer.parseInt(arg1);
-			operationReclaim(spaceToFree);
-			break;
+			return operations.submit(operation, arg1, progress -> operationReclaim(spaceToFree));
 		default:
 			System.out.println("Invalid message type.");
-			break;
+			return null;
 		}
 	}
 
 	/**
-	 * Operao Backup. Envia os pedidos de PUTCHUNK pelo MDB Channel. O formato
-	 * da mensagem de Backup :: GETCHUNK Version SenderId FileId ChunkNo
-	 * CRLF;CRLF
+	 * Operao Backup. Envia os pedidos de PUTCHUNK pelo MDB Channel, com at
+	 * sdis.backup.window chunks  espera de STORED. O formato da mensagem de
+	 * Backup :: PUTCHUNK Version SenderId FileId ChunkNo ReplicationDeg
+	 * CRLF;CRLF;Body. O ficheiro s  registado na BackupTable, e a verso
+	 * anterior apagada, depois de todos os chunks ficarem guardados.
 	 * 
 	 * @param filePath
 	 *            Ficheiro a guardar
 	 * @param rD
 	 *            Nvel de replicao
+	 * @param progress
+	 *            Operao onde  contado o progresso
+	 * @return true se todos os chunks ficaram guardados
+	 * @throws InterruptedException
+	 *             Se a operao for cancelada
 	 */
-	private void operationBackup(String filePath, int rD) {
-		Backup bckp = new Backup(filePath, rD);
-		ArrayList<Chunk> chunkFiles = bckp.getChunkFiles();
+	private boolean operationBackup(String filePath, int rD, Operation progress) throws InterruptedException {
+		BackupEngine engine = new BackupEngine(mdb, messageBuilder, replication, scheduler.getExecutor(),
+				PeerConfig.BACKUP_WINDOW, negotiator.negotiated() == ProtocolVersion.V1_0 ? null : knownContent,
+				progress);
+		String fileId;
 
-		while (!chunkFiles.isEmpty()) {
-			System.out.println("\nSending multicast BACKUP: ");
-			Chunk c = chunkFiles.remove(0);
-			String outMessage = "PUTCHUNK" + " " + VERSION + " " + PEER_ID + " " + c.getFileId() + " "
-					+ c.getChunkNumber() + " " + c.getReplicationDegree();
-			System.out.println(outMessage + " <CRLF><CRLF><body>");
-			outMessage += " " + "\r\n" + "\r\n";
+		try {
+			fileId = FileIdService.fileId(Paths.get(filePath));
+		} catch (IOException e) {
+			System.err.println("Error when tried to read from the file " + filePath + ".");
+			return false;
+		}
 
-			byte[] autoBuffer = new byte[0];
-			autoBuffer = joinArrays(outMessage.getBytes(), c.getContent());
+		try (Backup bckp = new Backup(filePath, fileId, rD)) {
+			progress.setChunkCount(bckp.getChunkCount());
 
-			int i = 0;
-			long sleepTime = 1000;
-			do {
-				i++;
-				mdb.send(autoBuffer);
+			if (!engine.run(bckp.chunks())) {
+				System.err.println("Did not receive enough STORED messages");
+				return false;
+			}
 
-				pauseThread(sleepTime);
-				sleepTime *= 2;
-			} while (i <= 5 && !mcHandler.receivedAllStored(c));
+			FileInformation previous = backupTable
+					.put(new FileInformation(filePath, fileId, rD, bckp.getChunkCount(), bckp.getSize()));
 
-			if (i > 5) {
-				System.err.println("Did not receive enough STORED messages");
-				break;
+			if (previous != null && !previous.getFileId().equals(fileId)) {
+				System.out.println("BACKUP: " + filePath + " changed, deleting the old version.");
+				replication.removeFile(previous.getFileId());
+				messageBuilder.send(mc, MessageType.DELETE, previous.getFileId(), -1, -1);
 			}
+			return true;
+		} catch (IOException | UncheckedIOException e) {
+			System.err.println("Error when tried to read from the file " + filePath + ".");
+			return false;
 		}
 	}
 
@@ -237,123 +482,180 @@ public class Peer extends UnicastRemoteObject implements PeerInterface {
 	 * 
 	 * @param filePath
 	 *            Ficheiro a apagar
+	 * @return true
 	 */
-	private void operationDelete(String filePath) {
-		String deleteMsg = "DELETE" + " " + VERSION + " " + PEER_ID + " " + filePath + " " + "\r\n" + "\r\n";
-		byte[] delete = deleteMsg.getBytes();
-
-		mc.send(delete);
+	private boolean operationDelete(String filePath) {
+		FileInformation info = backupTable.remove(filePath);
+		if (info != null)
+			replication.removeFile(info.getFileId());
+		messageBuilder.send(mc, MessageType.DELETE, info == null ? filePath : info.getFileId(), -1, -1);
+		return true;
 	}
 
 	/**
-	 * Operao Reclaim. Envia os pedidos de REMOVED pelo MC Channel. O formato
-	 * da mensagem de Reclaim : REMOVED Version SenderId FileId ChunkNo
-	 * CRLF;CRLF
+	 * Operao Reclaim. Escolhe os chunks a apagar com o ReclaimPlanner,
+	 * primeiro os que tm mais cpias do que as pedidas, e envia os pedidos de
+	 * REMOVED pelo MC Channel. O formato da mensagem de Reclaim : REMOVED
+	 * Version SenderId FileId ChunkNo CRLF;CRLF
+	 * 
+	 * Se a operao for cancelada, pra antes do chunk seguinte. A interrupo
+	 *  limpa antes de cada chunk, para no chegar ao ChunkStore.
 	 * 
 	 * @param spaceToFree
 	 *            Espao a libertar
+	 * @return false se a operao foi cancelada
 	 */
-	private void operationReclaim(int spaceToFree) {
-		Queue<Path> pathsToRemove = new LinkedList<Path>();
-
-		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(Paths.get("chunks/"))) {
-			for (Path path : directoryStream) {
-				System.out.println("  " + path.toString() + " ---- " + spaceToFree);
-				pathsToRemove.add(path);
-				spaceToFree -= Files.size(path);
-
-				if (spaceToFree <= 0)
-					break;
+	private boolean operationReclaim(int spaceToFree) {
+		ChunkCatalog catalog = chunkStore.getCatalog();
+		List<StoredChunk> chunksToRemove = new ReclaimPlanner(catalog).plan(spaceToFree);
+
+		System.out.println("RECLAIM: " + catalog.getUsedBytes() + " bytes used, removing " + chunksToRemove.size()
+				+ " chunks, " + ReclaimPlanner.underReplicated(chunksToRemove) + " below their degree");
+
+		int removed = 0;
+		for (StoredChunk c : chunksToRemove) {
+			if (Thread.interrupted()) {
+				System.out.println("RECLAIM: cancelled after removing " + removed + " chunks.");
+				Thread.currentThread().interrupt();
+				return false;
 			}
-		} catch (IOException ex) {
-			System.err.println("Error while trying to open chunks directory.");
-		}
-
-		while (!pathsToRemove.isEmpty()) {
-			Path p = pathsToRemove.poll();
-			String completeFilePath = p.getFileName().toString();
-			String filePath = completeFilePath.substring(0, completeFilePath.lastIndexOf('.'));
-			String chunkNo = completeFilePath.substring(completeFilePath.lastIndexOf('.') + 1,
-					completeFilePath.length());
-
-			chunkNo.replaceFirst("^0+(?!$)", "");
 
-			String removedMsg = "REMOVED" + " " + VERSION + " " + PEER_ID + " " + filePath + " " + chunkNo;
-			System.out.println("RECLAIM: " + removedMsg + " <CRLF><CRLF>");
-			removedMsg += " " + "\r\n" + "\r\n";
-			byte[] remove = removedMsg.getBytes();
-
-			mc.send(remove);
+			System.out.println("RECLAIM: REMOVED " + PEER_ID + " " + c.getFileId() + " " + c.getChunkNo()
+					+ " <CRLF><CRLF>");
+			messageBuilder.send(mc, MessageType.REMOVED, c.getFileId(), c.getChunkNo(), -1);
 
 			try {
-				Files.delete(p);
+				chunkStore.remove(c.getFileId(), c.getChunkNo());
+				removed++;
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
 		}
+		return true;
 	}
 
 	/**
-	 * Operao Restore. Envia os pedidos de GETCHUNK pelo MC Channel. O formato
-	 * da mensagem para pedir um chunk : GETCHUNK Version SenderId FileId
-	 * ChunkNo CRLF;CRLF
+	 * Operao Restore. Envia os pedidos de GETCHUNK pelo MC Channel, com at
+	 * sdis.restore.window pedidos pendentes. O nmero de chunks vem da tabela
+	 * de backups. O formato da mensagem para pedir um chunk : GETCHUNK Version
+	 * SenderId FileId ChunkNo CRLF;CRLF
 	 * 
 	 * @param filePath
 	 *            Ficheiro a recriar
+	 * @param progress
+	 *            Operao onde  contado o progresso
+	 * @return true se o ficheiro foi recriado
+	 * @throws InterruptedException
+	 *             Se a operao for cancelada
 	 */
-	private void operationRestore(String filePath) {
-		int chunkNo = 0;
-		do {
-			chunkNo++;
-			String outMessage = "GETCHUNK" + " " + VERSION + " " + PEER_ID + " " + filePath + " " + chunkNo;
-			System.out.println("RESTORE: " + outMessage);
-			outMessage += " " + "\r\n" + "\r\n";
-			byte[] buffer = outMessage.getBytes();
+	private boolean operationRestore(String filePath, Operation progress) throws InterruptedException {
+		FileInformation info = backupTable.getByPath(filePath);
+
+		if (info == null) {
+			System.err.println("RESTORE: " + filePath + " was not backed up by this peer.");
+			return false;
+		}
+
+		TcpChunkChannel direct = negotiator.versionFor(info.getFileId()).isDirectRestore() ? tcpChunkChannel : null;
+		RestoreEngine engine = new RestoreEngine(mc, messageBuilder, mdrHandler, direct, scheduler.getExecutor(),
+				PeerConfig.RESTORE_WINDOW, progress);
+		Path restored = Paths.get("files").resolve(Paths.get(filePath).getFileName());
 
-			mc.send(buffer);
+		progress.setChunkCount(info.getChunkCount());
+		try (FileAssembler assembler = new FileAssembler(restored, info.getSize(), Backup.CHUNK_SIZE)) {
+			if (!engine.run(info.getFileId(), info.getChunkCount(), assembler::write)) {
+				System.err.println("RESTORE: could not get every chunk of " + filePath + ".");
+				return false;
+			}
 
-			pauseThread(500);
-		} while (!mdrHandler.isEndOfFile());
+			assembler.complete();
+			System.out.println("RESTORE: " + filePath + " restored to " + restored + ".");
+			return true;
+		} catch (IOException e) {
+			System.err.println("Error when tried to write the file " + restored + ".");
+			return false;
+		}
 	}
 
 	/**
-	 * Operao State. Cria uma mensagem sobre o estado atual do Peer.
+	 * Operao State. Cria uma mensagem sobre o estado atual do Peer, lendo o
+	 * estado uma pgina de cada vez.
 	 */
-	public String operationState() {
-		String stateMsg = "STATE:\n  Peer " + PEER_ID + ":\n";
-
-		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(Paths.get("chunks/"))) {
-			for (Path path : directoryStream)
-				stateMsg += "    " + path.toString() + "\n";
-		} catch (IOException ex) {
-			System.err.println("Error when tried to open chunks directory for State message.");
+	public String operationState() throws RemoteException {
+		StringBuilder stateMsg = new StringBuilder();
+		StateSnapshot page = getState(null, 0, PeerConfig.STATE_PAGE_SIZE);
+		stateMsg.append(page);
+
+		while (page.hasMore()) {
+			page = getState(page.getNextFileId(), page.getNextChunkNo(), PeerConfig.STATE_PAGE_SIZE);
+			stateMsg.append(page);
 		}
 
-		return stateMsg;
+		return stateMsg.toString();
 	}
 
 	/**
-	 * Waits from 0 to time in ms.
-	 * 
-	 * @param time
-	 *            is the max time the Thread can sleep
+	 * Estado do Peer, com uma pgina dos chunks guardados. Os totais, graus de
+	 * replicao e contadores so mantidos  medida que as mensagens chegam,
+	 * por isso nada aqui percorre o ChunkStore: o custo depende do tamanho da
+	 * pgina e no do nmero de chunks.
 	 */
-	private static void pauseThread(long time) {
-		try {
-			new Thread(() -> {
-				try {
-					Thread.sleep(ThreadLocalRandom.current().nextLong(time));
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-			}) {
-				{
-					start();
-				}
-			}.join();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+	public StateSnapshot getState(String afterFileId, int afterChunkNo, int limit) throws RemoteException {
+		ChunkCatalog catalog = chunkStore.getCatalog();
+		int pageSize = Math.max(1, Math.min(limit, PeerConfig.STATE_PAGE_SIZE));
+		List<StoredChunk> stored = catalog.page(afterFileId, afterChunkNo, pageSize + 1);
+		boolean more = stored.size() > pageSize;
+
+		if (more)
+			stored = stored.subList(0, pageSize);
+
+		List<StateSnapshot.ChunkState> chunks = new ArrayList<StateSnapshot.ChunkState>(stored.size());
+		for (StoredChunk c : stored)
+			chunks.add(new StateSnapshot.ChunkState(c.getFileId(), c.getChunkNo(), c.getSize(), c.getDesiredDegree(),
+					c.getPerceivedDegree()));
+
+		String store = null;
+		List<StateSnapshot.FileState> files = null;
+		Map<String, Long> counters = null;
+		List<String> operationList = null;
+
+		if (afterFileId == null) {
+			store = chunkStore.toString();
+
+			files = new ArrayList<StateSnapshot.FileState>();
+			for (FileInformation info : backupTable.getAll())
+				files.add(new StateSnapshot.FileState(info.getFilePath(), info.getFileId(), info.getRepDegree(),
+						info.getSize(), replication.getDegrees(info.getFileId(), info.getChunkCount())));
+
+			counters = new LinkedHashMap<String, Long>();
+			addCounters(counters, "mc", mcQueue, mcHandler);
+			addCounters(counters, "mdb", mdbQueue, mdbHandler);
+			addCounters(counters, "mdr", mdrQueue, mdrHandler);
+			counters.put("answers.sent", suppression.getAnswered());
+			counters.put("answers.suppressed", suppression.getSuppressed());
+
+			operationList = new ArrayList<String>();
+			for (Operation operation : operations.list())
+				operationList.add(operation.toString());
 		}
+
+		StoredChunk last = more ? stored.get(stored.size() - 1) : null;
+		return new StateSnapshot(PEER_ID, VERSION + " (negotiated " + negotiator.negotiated() + ")",
+				catalog.getCount(), catalog.getUsedBytes(), store, files, counters, operationList, chunks,
+				last == null ? null : last.getFileId(), last == null ? 0 : last.getChunkNo());
+	}
+
+	/**
+	 * Junta aos contadores os da fila e do MessageDispatcher de um canal.
+	 */
+	private static void addCounters(Map<String, Long> counters, String channel, IngressQueue<Datagram> queue,
+			Handler handler) {
+		counters.put(channel + ".depth", (long) queue.depth());
+		counters.put(channel + ".maxDepth", (long) queue.getHighWatermark());
+		counters.put(channel + ".accepted", queue.getAccepted());
+		counters.put(channel + ".dropped", queue.getDropped());
+		if (handler.getDispatcher() != null)
+			counters.put(channel + ".inFlight", (long) handler.getDispatcher().getInFlight());
 	}
 
 	/**
@@ -371,8 +673,21 @@ public class Peer extends UnicastRemoteObject implements PeerInterface {
 			System.err.println(
 					"Or: <protocol_version> <server_id> <service_access_point> <MC_IP> <MC_PORT> <MDB_IP> <MDB_PORT> <MDR_IP> <MDR_PORT>");
 		} else {
-			VERSION = Double.parseDouble(args[0]);
+			VERSION = ProtocolVersion.parse(args[0]);
+			if (VERSION == null) {
+				System.err.println("Unsupported protocol version: " + args[0]);
+				return;
+			}
 			PEER_ID = Integer.parseInt(args[1]);
+			negotiator = new VersionNegotiator(VERSION);
+			messageBuilder = new MessageBuilder(PEER_ID, negotiator);
+			backupTable.load();
+			chunkStore = createChunkStore();
+			replication.load();
+			if (VERSION.isDirectRestore())
+				tcpChunkChannel = new TcpChunkChannel(PeerConfig.RESTORE_HOST, PeerConfig.RESTORE_PORT);
+			scheduler.repeatBlocking(Peer::saveReplication, PeerConfig.REPLICATION_SAVE_INTERVAL);
+			Runtime.getRuntime().addShutdownHook(new Thread(Peer::saveReplication));
 			String srvc_accss_pnt = args[2];
 			System.out.println("Peer: " + srvc_accss_pnt + " started.");
 
@@ -399,13 +714,26 @@ public class Peer extends UnicastRemoteObject implements PeerInterface {
 
 			System.out.println("RMI Sucessfully Registred");
 
-			mc = new MulticastChannel(MC_IP, MC_PORT);
-			mdb = new MulticastChannel(MDB_IP, MDB_PORT);
-			mdr = new MulticastChannel(MDR_IP, MDR_PORT);
+			mc = createChannel(MC_IP, MC_PORT);
+			mdb = createChannel(MDB_IP, MDB_PORT);
+			mdr = createChannel(MDR_IP, MDR_PORT);
 
 			joinChannels();
-			initializeListeners();
-			initializeHandlers();
+			initializeQueues();
+			createHandlers();
+			chunkStore.track(mcHandler);
+
+			if (PeerConfig.REACTOR)
+				initializeReactor();
+			else {
+				initializeListeners();
+				initializeHandlers();
+			}
+
+			// Um peer 1.0 no se anuncia, para poder partilhar os canais com
+			// peers da implementao original, que falham ao ler um HELLO.
+			if (VERSION != ProtocolVersion.V1_0)
+				sendHello();
 		}
 	}
 
@@ -0,0 +1,201 @@
+package peer;
+
+/**
+ * Peer tuning parameters, read from system properties (-Dsdis.xxx=value) with
+ * defaults.
+ */
+public final class PeerConfig {
+	/**
+	 * Maximum number of messages waiting in each multicast ingress queue.
+	 */
+	public static final int QUEUE_CAPACITY = Integer.getInteger("sdis.queue.capacity", 1024);
+
+	/**
+	 * What an ingress queue does when it is full: BLOCK, DROP_NEWEST or
+	 * DROP_OLDEST.
+	 */
+	public static final IngressQueue.Policy QUEUE_POLICY = IngressQueue.Policy
+			.valueOf(System.getProperty("sdis.queue.policy", "BLOCK"));
+
+	/**
+	 * Multicast transport: "nio" (DatagramChannel with pooled direct buffers,
+	 * sending the header and body with one gathering write) or "socket"
+	 * (MulticastSocket, which copies every message into one buffer before
+	 * sending it).
+	 */
+	public static final String TRANSPORT = System.getProperty("sdis.transport", "nio");
+
+	/**
+	 * Number of idle receive buffers kept by each NIO channel.
+	 */
+	public static final int POOL_BUFFERS = Integer.getInteger("sdis.pool.buffers", 64);
+
+	/**
+	 * Name of the network interface used to join the multicast groups with the NIO
+	 * transport. When unset the first multicast capable interface is used.
+	 */
+	public static final String NETWORK_INTERFACE = System.getProperty("sdis.nif");
+
+	/**
+	 * Reactor mode: a single Selector thread reads MC, MDB and MDR and a small
+	 * worker pool runs the handlers. Implies the NIO transport.
+	 */
+	public static final boolean REACTOR = Boolean.getBoolean("sdis.reactor");
+
+	/**
+	 * Number of worker threads running the handlers in reactor mode.
+	 */
+	public static final int REACTOR_WORKERS = Integer.getInteger("sdis.reactor.workers", 2);
+
+	/**
+	 * Number of threads running the protocol timers that only send messages:
+	 * retransmissions and HELLO answers.
+	 */
+	public static final int TIMER_THREADS = Integer.getInteger("sdis.timer.threads", 2);
+
+	/**
+	 * Number of threads running the protocol timers that block on the chunk
+	 * store: deferred stores, CHUNK and PUTCHUNK answers and the replication
+	 * snapshots.
+	 */
+	public static final int IO_THREADS = Integer.getInteger("sdis.io.threads", 8);
+
+	/**
+	 * Analyses the messages of each channel concurrently, in order only among
+	 * the messages of the same chunk and around those about a whole file,
+	 * instead of one at a time on the handler thread.
+	 */
+	public static final boolean DISPATCH = Boolean.getBoolean("sdis.dispatch");
+
+	/**
+	 * Number of threads analysing the messages of each channel when dispatching
+	 * on a JDK without virtual threads.
+	 */
+	public static final int DISPATCH_THREADS = Integer.getInteger("sdis.dispatch.threads", 4);
+
+	/**
+	 * Maximum number of messages of each channel being analysed or waiting for
+	 * an earlier message of their chunk when dispatching.
+	 */
+	public static final int DISPATCH_CONCURRENCY = Integer.getInteger("sdis.dispatch.concurrency", 32);
+
+	/**
+	 * Number of chunks a backup keeps in flight while waiting for STORED.
+	 */
+	public static final int BACKUP_WINDOW = Integer.getInteger("sdis.backup.window", 8);
+
+	/**
+	 * Enhanced backup: maximum random delay, in ms, before a peer stores a
+	 * received chunk. A peer that has seen enough STORED messages for the chunk
+	 * by then does not store it. 0 stores every chunk at once.
+	 */
+	public static final long STORE_DELAY = Long.getLong("sdis.store.delay", 0);
+
+	/**
+	 * Time, in ms, during which a CHUNK or PUTCHUNK seen from another peer
+	 * keeps this peer from sending the same answer. Shorter than the restore
+	 * retry, so a retried GETCHUNK is answered again.
+	 */
+	public static final long SUPPRESSION_WINDOW = Long.getLong("sdis.suppression.window", 500);
+
+	/**
+	 * Maximum number of GETCHUNKs outstanding during a restore.
+	 */
+	public static final int RESTORE_WINDOW = Integer.getInteger("sdis.restore.window", 16);
+
+	/**
+	 * Number of BACKUP, RESTORE, DELETE and RECLAIM operations run at the same
+	 * time; the others wait in a queue.
+	 */
+	public static final int OPERATION_THREADS = Integer.getInteger("sdis.operations.threads", 4);
+
+	/**
+	 * Number of finished operations whose progress can still be polled.
+	 */
+	public static final int OPERATION_HISTORY = Integer.getInteger("sdis.operations.history", 64);
+
+	/**
+	 * Maximum number of stored chunks in a page of the state.
+	 */
+	public static final int STATE_PAGE_SIZE = Integer.getInteger("sdis.state.page", 1000);
+
+	/**
+	 * Address advertised in 2.1 GETCHUNKs for the chunks to be sent to over
+	 * TCP. When unset an IPv4 address of the multicast interface is used, see
+	 * sdis.nif, so the serving peers reach this one on the network the
+	 * GETCHUNK came from.
+	 */
+	public static final String RESTORE_HOST = System.getProperty("sdis.restore.host");
+
+	/**
+	 * TCP port the chunks of 2.1 restores are received on; 0 picks a free one.
+	 */
+	public static final int RESTORE_PORT = Integer.getInteger("sdis.restore.port", 0);
+
+	/**
+	 * Number of threads sending chunks over TCP to 2.1 initiators.
+	 */
+	public static final int RESTORE_SENDERS = Integer.getInteger("sdis.restore.senders", 4);
+
+	/**
+	 * Number of fileId to chunk file name translations kept in memory.
+	 */
+	public static final int NAME_CACHE_SIZE = Integer.getInteger("sdis.name.cache", 1024);
+
+	/**
+	 * Chunk store backend: "file" for one file per chunk, "pack" for append
+	 * only segment files.
+	 */
+	public static final String CHUNK_STORE = System.getProperty("sdis.store", "file");
+
+	/**
+	 * Bytes of chunk content kept in memory to answer GETCHUNK and REMOVED; 0
+	 * disables the cache.
+	 */
+	public static final long CACHE_BYTES = Long.getLong("sdis.cache.bytes", 32L << 20);
+
+	/**
+	 * Number of chunks read ahead of a file being read in order.
+	 */
+	public static final int CACHE_READ_AHEAD = Integer.getInteger("sdis.cache.readahead", 4);
+
+	/**
+	 * Directory of the chunk catalog snapshot and journal.
+	 */
+	public static final String CATALOG_DIR = System.getProperty("sdis.catalog.dir", "metadata");
+
+	/**
+	 * Milliseconds between saves of the replication degrees seen in STORED
+	 * messages.
+	 */
+	public static final long REPLICATION_SAVE_INTERVAL = Long.getLong("sdis.replication.save", 5000);
+
+	/**
+	 * Directory of the segment files of the pack store.
+	 */
+	public static final String PACK_DIR = System.getProperty("sdis.pack.dir", "packs");
+
+	/**
+	 * Size after which the pack store starts a new segment.
+	 */
+	public static final long PACK_SEGMENT_SIZE = Long.getLong("sdis.pack.segment", 64L << 20);
+
+	/**
+	 * Directory of the content files shared by identical chunks.
+	 */
+	public static final String CONTENT_DIR = System.getProperty("sdis.content.dir", "content");
+
+	/**
+	 * Number of chunk fingerprints remembered as stored by other peers, which
+	 * are then sent as PUTREF instead of PUTCHUNK.
+	 */
+	public static final int KNOWN_CONTENT = Integer.getInteger("sdis.dedup.known", 16384);
+
+	/**
+	 * File where the table of files backed up by this peer is kept.
+	 */
+	public static final String BACKUP_TABLE = System.getProperty("sdis.backup.table", "metadata/backups.tsv");
+
+	private PeerConfig() {
+	}
+}
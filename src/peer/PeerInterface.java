@@ -6,5 +6,37 @@ import java.rmi.RemoteException;
 public interface PeerInterface extends Remote {
 	void handleOperation(String operation, String filePath, String replicationDegree) throws RemoteException;
 
+	/**
+	 * Queues an operation and returns without waiting for it.
+	 * 
+	 * @return Id of the operation, or -1 if the operation is not valid
+	 */
+	long submitOperation(String operation, String filePath, String replicationDegree) throws RemoteException;
+
+	/**
+	 * @param id
+	 *            Id of an operation, or -1 for all of them
+	 * @return Status, chunks done, bytes/s and retries of the operations
+	 */
+	String operationProgress(long id) throws RemoteException;
+
+	/**
+	 * @return false if there is no such operation or it already finished
+	 */
+	boolean cancelOperation(long id) throws RemoteException;
+
 	String operationState() throws RemoteException;
+
+	/**
+	 * Reads the state of the peer a page of stored chunks at a time.
+	 * 
+	 * @param afterFileId
+	 *            getNextFileId() of the previous page, or null for the first
+	 *            page
+	 * @param afterChunkNo
+	 *            getNextChunkNo() of the previous page
+	 * @param limit
+	 *            Maximum number of chunks in the page
+	 */
+	StateSnapshot getState(String afterFileId, int afterChunkNo, int limit) throws RemoteException;
 }
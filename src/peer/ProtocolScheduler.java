@@ -0,0 +1,106 @@
+package peer;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Timers shared by every protocol action of the peer: retransmissions,
+ * randomised answer delays and deferred stores.
+ *
+ * Actions are scheduled instead of sleeping on the handler or RMI thread that
+ * decides them, and can be cancelled until they run; cancelled actions are
+ * dropped from the queue at once. A small pool of daemon threads runs the
+ * actions that only send messages. Actions that read or write the chunk store
+ * or block on the network are scheduled as blocking and run on a larger pool
+ * of their own, so a slow disk never delays a retransmission.
+ */
+public class ProtocolScheduler {
+	private final ScheduledThreadPoolExecutor executor;
+	private final ScheduledThreadPoolExecutor blocking;
+
+	/**
+	 * @param threads
+	 *            Number of threads running the actions
+	 * @param blockingThreads
+	 *            Number of threads running the blocking actions
+	 */
+	public ProtocolScheduler(int threads, int blockingThreads) {
+		executor = pool(threads, "protocol-timer-");
+		blocking = pool(blockingThreads, "protocol-io-");
+	}
+
+	/**
+	 * Runs action after delay ms, unless cancelled.
+	 */
+	public ScheduledFuture<?> schedule(Runnable action, long delay) {
+		return executor.schedule(guard(action), delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs action after a random delay from 0 to maxDelay ms, unless cancelled.
+	 */
+	public ScheduledFuture<?> scheduleRandom(Runnable action, long maxDelay) {
+		return schedule(action, ThreadLocalRandom.current().nextLong(maxDelay + 1));
+	}
+
+	/**
+	 * Runs a blocking action after delay ms, unless cancelled.
+	 */
+	public ScheduledFuture<?> scheduleBlocking(Runnable action, long delay) {
+		return blocking.schedule(guard(action), delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs a blocking action after a random delay from 0 to maxDelay ms, unless
+	 * cancelled.
+	 */
+	public ScheduledFuture<?> scheduleRandomBlocking(Runnable action, long maxDelay) {
+		return scheduleBlocking(action, ThreadLocalRandom.current().nextLong(maxDelay + 1));
+	}
+
+	/**
+	 * Runs a blocking action every period ms, each run starting period ms after
+	 * the previous one ended.
+	 */
+	public ScheduledFuture<?> repeatBlocking(Runnable action, long period) {
+		return blocking.scheduleWithFixedDelay(guard(action), period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return The executor behind the scheduler, for components that take a
+	 *         ScheduledExecutorService
+	 */
+	public ScheduledExecutorService getExecutor() {
+		return executor;
+	}
+
+	private static ScheduledThreadPoolExecutor pool(int threads, String name) {
+		AtomicInteger count = new AtomicInteger();
+
+		ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(threads, r -> {
+			Thread thread = new Thread(r, name + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		pool.setRemoveOnCancelPolicy(true);
+		return pool;
+	}
+
+	/**
+	 * Reports what an action throws, which the executor would otherwise keep
+	 * in a future nobody reads.
+	 */
+	private static Runnable guard(Runnable action) {
+		return () -> {
+			try {
+				action.run();
+			} catch (RuntimeException e) {
+				System.err.println("Scheduled action failed: " + e);
+			}
+		};
+	}
+}
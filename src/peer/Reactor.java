@@ -0,0 +1,118 @@
+package peer;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import handlers.Handler;
+
+/**
+ * Single Selector thread that reads every registered multicast channel and
+ * hands the datagrams to a small worker pool. Each handler is drained by at
+ * most one worker at a time, so handlers keep their single-threaded view of
+ * their own state.
+ */
+public class Reactor implements Runnable {
+	private final Selector selector;
+	private final ExecutorService workers;
+
+	/**
+	 * @param workers
+	 *            Number of threads running the handlers
+	 * @throws IOException
+	 *             If the Selector cannot be opened
+	 */
+	public Reactor(int workers) throws IOException {
+		this.selector = Selector.open();
+		this.workers = Executors.newFixedThreadPool(workers);
+	}
+
+	/**
+	 * Routes the datagrams of channel to the queue of handler.
+	 * 
+	 * @param channel
+	 *            Joined NIO channel
+	 * @param handler
+	 *            Handler of that channel
+	 * @throws IOException
+	 */
+	public void register(NioMulticastChannel channel, Handler handler) throws IOException {
+		channel.register(selector, new Route(channel, handler));
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				selector.select();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					if (key.isValid() && key.isReadable())
+						((Route) key.attachment()).readAll();
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Reactor stopped: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Channel, handler and the drain state that ties them together.
+	 */
+	private class Route {
+		private final NioMulticastChannel channel;
+		private final Handler handler;
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+
+		Route(NioMulticastChannel channel, Handler handler) {
+			this.channel = channel;
+			this.handler = handler;
+		}
+
+		/**
+		 * Reads every pending datagram into the handler queue, making sure a
+		 * worker is draining it so a full queue cannot stall the reactor forever.
+		 */
+		void readAll() throws IOException, InterruptedException {
+			Datagram data;
+
+			while ((data = channel.receive()) != null) {
+				schedule();
+
+				if (data.length() != 0)
+					handler.getMsgQueue().offer(data);
+				else
+					data.release();
+			}
+
+			schedule();
+		}
+
+		private void schedule() {
+			if (!handler.getMsgQueue().isEmpty() && scheduled.compareAndSet(false, true))
+				workers.execute(this::drain);
+		}
+
+		private void drain() {
+			try {
+				handler.processPending();
+			} finally {
+				scheduled.set(false);
+			}
+
+			schedule();
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import handlers.MdrHandler;
+import handlers.MessageCodec;
+import handlers.MessageType;
+import interfaces.Chunk;
+
+/**
+ * Requests the chunks of a file with up to window GETCHUNKs outstanding.
+ * 
+ * The number of chunks comes from the backup table, so the restore does not
+ * depend on seeing a short last chunk. Every request has its own timer and is
+ * repeated, doubling from RETRY_DELAY, until its CHUNK arrives or it runs out
+ * of MAX_ATTEMPTS. Each chunk is accepted by the sink exactly once; a copy the
+ * sink rejects, such as one of the wrong size, leaves its request pending and
+ * it is asked for again. Chunks are handed over in arrival order, on the
+ * thread that received them: the one analysing MDR messages, a
+ * MessageDispatcher thread with sdis.dispatch, or, with a TcpChunkChannel,
+ * the thread of the TCP connection; the sink must not assume a single thread.
+ * 
+ * With a TcpChunkChannel, every GETCHUNK carries its endpoint, so the chunks
+ * can be sent over TCP instead of MDR.
+ */
+public class RestoreEngine implements MdrHandler.ChunkListener {
+	/**
+	 * Receives the chunks of the file being restored.
+	 */
+	public interface ChunkSink {
+		/**
+		 * @param chunk
+		 *            Chunk whose content is only valid during the call
+		 * @return false if the chunk is rejected and must be requested again
+		 * @throws IOException
+		 *             Fails the restore
+		 */
+		boolean accept(Chunk chunk) throws IOException;
+	}
+
+	private static final long RETRY_DELAY = 1000;
+	private static final int MAX_ATTEMPTS = 5;
+
+	private final MulticastChannel mc;
+	private final MessageBuilder builder;
+	private final MdrHandler mdrHandler;
+	private final TcpChunkChannel direct;
+	private final ByteBuffer endpoint;
+	private final ScheduledExecutorService timers;
+	private final int window;
+	private final Operation progress;
+	private final Semaphore slots;
+	private final Map<Integer, Request> pending = new ConcurrentHashMap<Integer, Request>();
+	private volatile String fileId;
+	private volatile ChunkSink sink;
+	private volatile boolean failed = false;
+
+	/**
+	 * @param mc
+	 *            MC channel
+	 * @param builder
+	 *            Builder of the GETCHUNK messages
+	 * @param mdrHandler
+	 *            MDR handler, source of the CHUNK events
+	 * @param direct
+	 *            Receives the chunks sent over TCP, or null to get them all
+	 *            from MDR
+	 * @param timers
+	 *            Runs the retransmission timers
+	 * @param window
+	 *            Maximum number of GETCHUNKs outstanding
+	 * @param progress
+	 *            Operation counting the chunks received and the retransmissions
+	 */
+	public RestoreEngine(MulticastChannel mc, MessageBuilder builder, MdrHandler mdrHandler,
+			TcpChunkChannel direct, ScheduledExecutorService timers, int window, Operation progress) {
+		this.mc = mc;
+		this.builder = builder;
+		this.mdrHandler = mdrHandler;
+		this.direct = direct;
+		this.endpoint = direct == null ? null : MessageCodec.encodeEndpoint(direct.getEndpoint());
+		this.timers = timers;
+		this.window = window;
+		this.progress = progress;
+		this.slots = new Semaphore(window);
+	}
+
+	/**
+	 * Requests chunks 1 to chunkCount of the file and waits until all of them
+	 * arrived or one of them runs out of attempts.
+	 * 
+	 * @param fileId
+	 *            File to restore
+	 * @param chunkCount
+	 *            Number of chunks of the file
+	 * @param sink
+	 *            Receives every chunk of the file
+	 * @return true if every chunk arrived
+	 * @throws InterruptedException
+	 */
+	public boolean run(String fileId, int chunkCount, ChunkSink sink) throws InterruptedException {
+		this.fileId = fileId;
+		this.sink = sink;
+		mdrHandler.addChunkListener(this);
+		if (direct != null)
+			direct.addChunkListener(this);
+
+		try {
+			for (int chunkNo = 1; chunkNo <= chunkCount && !failed; chunkNo++) {
+				slots.acquire();
+				if (failed) {
+					slots.release();
+					break;
+				}
+
+				Request request = new Request(chunkNo);
+				pending.put(chunkNo, request);
+				request.send();
+			}
+
+			slots.acquire(window);
+			slots.release(window);
+		} finally {
+			mdrHandler.removeChunkListener(this);
+			if (direct != null)
+				direct.removeChunkListener(this);
+			for (Request request : pending.values())
+				request.cancel();
+		}
+
+		return !failed;
+	}
+
+	@Override
+	public void received(Chunk chunk) {
+		if (!chunk.getFileId().equals(fileId))
+			return;
+
+		Request request = pending.get(chunk.getChunkNumber());
+		if (request != null)
+			request.finish(chunk);
+	}
+
+	/**
+	 * A GETCHUNK waiting for its CHUNK.
+	 */
+	private class Request implements Runnable {
+		private final int chunkNo;
+		private int attempts = 0;
+		private ScheduledFuture<?> timer;
+
+		Request(int chunkNo) {
+			this.chunkNo = chunkNo;
+		}
+
+		synchronized void send() {
+			if (++attempts > 1)
+				progress.retried();
+			System.out.println("RESTORE: GETCHUNK " + fileId + " " + chunkNo + " (attempt " + attempts + ")");
+
+			builder.send(mc, MessageType.GETCHUNK, fileId, chunkNo, -1,
+					endpoint == null ? null : endpoint.duplicate());
+			timer = timers.schedule(this, RETRY_DELAY << (attempts - 1), TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Retransmission timeout.
+		 */
+		@Override
+		public synchronized void run() {
+			if (pending.get(chunkNo) != this)
+				return;
+
+			if (attempts < MAX_ATTEMPTS)
+				send();
+			else {
+				System.err.println("No peer answered GETCHUNK for chunk " + chunkNo);
+				finish(null);
+			}
+		}
+
+		/**
+		 * Delivers the chunk and frees the slot of this request, once the sink
+		 * accepts it. A rejected chunk leaves the request and its timer
+		 * running. A null chunk fails the request.
+		 */
+		void finish(Chunk chunk) {
+			synchronized (this) {
+				if (pending.get(chunkNo) != this)
+					return;
+
+				if (chunk == null)
+					failed = true;
+				else {
+					try {
+						if (!sink.accept(chunk)) {
+							System.err.println("Chunk " + chunkNo + " was rejected, requesting it again.");
+							return;
+						}
+						progress.chunkDone(chunk.getSize());
+					} catch (IOException e) {
+						System.err.println("Failed to write chunk " + chunkNo + " of the restored file.");
+						failed = true;
+					}
+				}
+
+				pending.remove(chunkNo, this);
+				cancel();
+			}
+
+			slots.release();
+		}
+
+		synchronized void cancel() {
+			if (timer != null)
+				timer.cancel(false);
+		}
+	}
+}
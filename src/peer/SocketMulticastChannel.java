@@ -0,0 +1,119 @@
+package peer;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Multicast channel over a blocking MulticastSocket, used with
+ * sdis.transport=socket.
+ *
+ * A DatagramPacket takes a single array, so every message sent is copied, body
+ * included, into a buffer of the sending thread; only NioMulticastChannel
+ * sends the parts of a message without copying them.
+ */
+public class SocketMulticastChannel implements MulticastChannel {
+	private InetAddress group;
+	private int PORT;
+	private MulticastSocket socket = null;
+	private static final ThreadLocal<byte[]> SEND_BUFFER = ThreadLocal.withInitial(() -> new byte[65536]);
+
+	/**
+	 * Cria o canal para multicast.
+	 * 
+	 * @param ip
+	 * @param port
+	 * @throws UnknownHostException
+	 */
+	public SocketMulticastChannel(String ip, int port) throws UnknownHostException {
+		this.group = InetAddress.getByName(ip);
+		this.PORT = port;
+	}
+
+	/**
+	 * Fecha o socket.
+	 * 
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		socket.leaveGroup(group);
+		socket.close();
+	}
+
+	/**
+	 * Liga o socket ao grupo.
+	 * 
+	 * @throws IOException
+	 */
+	@Override
+	public void join() throws IOException {
+		socket = new MulticastSocket(PORT);
+		socket.joinGroup(group);
+	}
+
+	/**
+	 * Recebe da rede multicast.
+	 * 
+	 * @param buf
+	 *            buffer a ser preenchido
+	 * @return Datagram com data recebida
+	 * @throws IOException
+	 */
+	@Override
+	public Datagram receive() throws IOException {
+		byte[] buf = new byte[65536];
+		DatagramPacket packet = new DatagramPacket(buf, buf.length, group, PORT);
+		socket.receive(packet);
+		return Datagram.wrap(Arrays.copyOfRange(packet.getData(), 0, packet.getLength()));
+	}
+
+	/**
+	 * Envia um DatagramPacket com a informao de toSend para a rede multicast.
+	 * 
+	 * @param toSend
+	 *            Dados a ser enviados sob a forma de byte[]
+	 * @throws IOException
+	 */
+	@Override
+	public void send(byte[] toSend) {
+		DatagramPacket packet = new DatagramPacket(toSend, toSend.length, group, PORT);
+		try {
+			socket.send(packet);
+		} catch (IOException e) {
+			System.out.println("Falhou no envio do packet.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Junta parts num buffer reutilizado pelo thread e envia-o num nico
+	 * DatagramPacket.
+	 * 
+	 * @param parts
+	 *            Cabealho e body da mensagem
+	 */
+	@Override
+	public void send(ByteBuffer[] parts) {
+		byte[] buf = SEND_BUFFER.get();
+		int length = 0;
+
+		for (ByteBuffer part : parts) {
+			int n = part.remaining();
+			part.duplicate().get(buf, length, n);
+			length += n;
+		}
+
+		DatagramPacket packet = new DatagramPacket(buf, length, group, PORT);
+		try {
+			socket.send(packet);
+		} catch (IOException e) {
+			System.out.println("Falhou no envio do packet.");
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,271 @@
+package peer;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * State of a peer as returned by PeerInterface.getState(), one page of stored
+ * chunks at a time.
+ *
+ * Every page carries the totals of the chunk store. The first page, the one
+ * asked for without a cursor, also carries the files this peer backed up, the
+ * live counters and the operations; the following pages carry only chunks.
+ * Nothing in it is computed by walking the store: the totals and degrees are
+ * kept up to date by the catalog and the ReplicationTracker as messages
+ * arrive.
+ */
+public class StateSnapshot implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * A file backed up by this peer.
+	 */
+	public static class FileState implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final String path;
+		private final String fileId;
+		private final int desiredDegree;
+		private final long size;
+		private final int[] perceivedDegrees;
+
+		public FileState(String path, String fileId, int desiredDegree, long size, int[] perceivedDegrees) {
+			this.path = path;
+			this.fileId = fileId;
+			this.desiredDegree = desiredDegree;
+			this.size = size;
+			this.perceivedDegrees = perceivedDegrees;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public String getFileId() {
+			return fileId;
+		}
+
+		public int getDesiredDegree() {
+			return desiredDegree;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * @return Number of peers known to store each chunk, at index chunkNo
+		 *         - 1
+		 */
+		public int[] getPerceivedDegrees() {
+			return perceivedDegrees;
+		}
+	}
+
+	/**
+	 * A chunk stored by this peer.
+	 */
+	public static class ChunkState implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final String fileId;
+		private final int chunkNo;
+		private final long size;
+		private final int desiredDegree;
+		private final int perceivedDegree;
+
+		public ChunkState(String fileId, int chunkNo, long size, int desiredDegree, int perceivedDegree) {
+			this.fileId = fileId;
+			this.chunkNo = chunkNo;
+			this.size = size;
+			this.desiredDegree = desiredDegree;
+			this.perceivedDegree = perceivedDegree;
+		}
+
+		public String getFileId() {
+			return fileId;
+		}
+
+		public int getChunkNo() {
+			return chunkNo;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public int getDesiredDegree() {
+			return desiredDegree;
+		}
+
+		/**
+		 * @return Number of peers known to store the chunk, this one included
+		 */
+		public int getPerceivedDegree() {
+			return perceivedDegree;
+		}
+	}
+
+	private final int peerId;
+	private final String protocol;
+	private final int chunkCount;
+	private final long usedBytes;
+	private final String store;
+	private final List<FileState> files;
+	private final Map<String, Long> counters;
+	private final List<String> operations;
+	private final List<ChunkState> chunks;
+	private final String nextFileId;
+	private final int nextChunkNo;
+
+	/**
+	 * @param store
+	 *            Description of the chunk store, or null on pages after the
+	 *            first
+	 * @param files
+	 *            Backed up files, or null on pages after the first
+	 * @param counters
+	 *            Live counters by name, or null on pages after the first
+	 * @param operations
+	 *            Operations kept by the OperationManager, or null on pages
+	 *            after the first
+	 * @param chunks
+	 *            Chunks of this page
+	 * @param nextFileId
+	 *            File of the last chunk of this page if there are more, else
+	 *            null
+	 * @param nextChunkNo
+	 *            Number of the last chunk of this page if there are more
+	 */
+	public StateSnapshot(int peerId, String protocol, int chunkCount, long usedBytes, String store,
+			List<FileState> files, Map<String, Long> counters, List<String> operations, List<ChunkState> chunks,
+			String nextFileId, int nextChunkNo) {
+		this.peerId = peerId;
+		this.protocol = protocol;
+		this.chunkCount = chunkCount;
+		this.usedBytes = usedBytes;
+		this.store = store;
+		this.files = files;
+		this.counters = counters;
+		this.operations = operations;
+		this.chunks = chunks;
+		this.nextFileId = nextFileId;
+		this.nextChunkNo = nextChunkNo;
+	}
+
+	public int getPeerId() {
+		return peerId;
+	}
+
+	/**
+	 * @return Protocol version of the peer and the one negotiated
+	 */
+	public String getProtocol() {
+		return protocol;
+	}
+
+	/**
+	 * @return Number of chunks stored, in all pages
+	 */
+	public int getChunkCount() {
+		return chunkCount;
+	}
+
+	/**
+	 * @return Bytes used by the stored chunks
+	 */
+	public long getUsedBytes() {
+		return usedBytes;
+	}
+
+	/**
+	 * @return Description of the chunk store and its cache, null on pages
+	 *         after the first
+	 */
+	public String getStore() {
+		return store;
+	}
+
+	/**
+	 * @return Backed up files, empty on pages after the first
+	 */
+	public List<FileState> getFiles() {
+		return files == null ? Collections.<FileState>emptyList() : files;
+	}
+
+	/**
+	 * @return Live counters by name, empty on pages after the first
+	 */
+	public Map<String, Long> getCounters() {
+		return counters == null ? Collections.<String, Long>emptyMap() : counters;
+	}
+
+	/**
+	 * @return Operations, empty on pages after the first
+	 */
+	public List<String> getOperations() {
+		return operations == null ? Collections.<String>emptyList() : operations;
+	}
+
+	public List<ChunkState> getChunks() {
+		return chunks;
+	}
+
+	/**
+	 * @return true if there are chunks after this page
+	 */
+	public boolean hasMore() {
+		return nextFileId != null;
+	}
+
+	/**
+	 * @return Cursor for the next page: pass it back to getState()
+	 */
+	public String getNextFileId() {
+		return nextFileId;
+	}
+
+	public int getNextChunkNo() {
+		return nextChunkNo;
+	}
+
+	/**
+	 * Text of the STATE operation. Only the first page has the header.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+
+		if (files != null) {
+			sb.append("STATE:\n  Peer ").append(peerId).append(":\n");
+			sb.append("  Protocol: ").append(protocol).append('\n');
+			sb.append("  Files:\n");
+			for (FileState file : files) {
+				sb.append("    ").append(file.path).append(' ').append(file.fileId).append(" (").append(file.size)
+						.append(" bytes, degree ").append(file.desiredDegree).append(")\n");
+				for (int i = 0; i < file.perceivedDegrees.length; i++)
+					sb.append("      ").append(String.format("%03d", i + 1)).append(": degree ")
+							.append(file.perceivedDegrees[i]).append('\n');
+			}
+
+			sb.append("  Counters:\n");
+			for (Map.Entry<String, Long> counter : counters.entrySet())
+				sb.append("    ").append(counter.getKey()).append(' ').append(counter.getValue()).append('\n');
+
+			sb.append("  Operations:\n");
+			for (String operation : operations)
+				sb.append("    ").append(operation).append('\n');
+
+			sb.append("  Chunks (").append(store).append("):\n");
+		}
+
+		for (ChunkState chunk : chunks)
+			sb.append("    ").append(chunk.fileId).append('.').append(String.format("%03d", chunk.chunkNo))
+					.append(" (").append(chunk.size).append(" bytes, degree ").append(chunk.perceivedDegree)
+					.append('/').append(chunk.desiredDegree).append(")\n");
+
+		return sb.toString();
+	}
+}
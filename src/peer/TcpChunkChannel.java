@@ -0,0 +1,221 @@
+package peer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import handlers.MdrHandler;
+import interfaces.Chunk;
+
+/**
+ * Point-to-point delivery of CHUNK bodies for protocol 2.1 restores.
+ *
+ * The initiator listens on a TCP port and advertises it in its GETCHUNKs; the
+ * peer that answers connects, writes the chunk and closes. Each connection
+ * carries frames of: fileId (modified UTF-8), chunkNo (4), length (4) and the
+ * content, and is read on its own thread. Received chunks go to the same
+ * ChunkListeners as chunks multicast on MDR.
+ *
+ * Chunks are sent by a pool of RESTORE_SENDERS threads, as connecting to an
+ * initiator can block for up to CONNECT_TIMEOUT.
+ */
+public class TcpChunkChannel implements Closeable {
+	private static final int CONNECT_TIMEOUT = 1000;
+	private static final int MAX_CHUNK = 1 << 20;
+
+	private static final ExecutorService senders = Executors.newFixedThreadPool(PeerConfig.RESTORE_SENDERS, r -> {
+		Thread thread = new Thread(r, "tcp-chunk-sender");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final ServerSocketChannel server;
+	private final InetSocketAddress endpoint;
+	private final List<MdrHandler.ChunkListener> listeners = new CopyOnWriteArrayList<MdrHandler.ChunkListener>();
+	private final ExecutorService readers = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "tcp-chunk-reader");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final Thread acceptor;
+
+	/**
+	 * Starts listening.
+	 *
+	 * @param host
+	 *            Address advertised to the serving peers, or null for an
+	 *            address of the multicast interface
+	 * @param port
+	 *            Port to listen on, 0 for any free port
+	 * @throws IOException
+	 */
+	public TcpChunkChannel(String host, int port) throws IOException {
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(port));
+
+		InetAddress address = host == null ? multicastAddress() : InetAddress.getByName(host);
+		endpoint = new InetSocketAddress(address, ((InetSocketAddress) server.getLocalAddress()).getPort());
+
+		acceptor = new Thread(this::accept, "tcp-chunk-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * @return Address and port the serving peers should connect to
+	 */
+	public InetSocketAddress getEndpoint() {
+		return endpoint;
+	}
+
+	public void addChunkListener(MdrHandler.ChunkListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeChunkListener(MdrHandler.ChunkListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Sends a chunk to the endpoint of an initiator on a sender thread.
+	 *
+	 * @param endpoint
+	 *            Endpoint taken from the GETCHUNK
+	 * @param chunk
+	 *            Chunk to send; its buffer is not modified
+	 * @param done
+	 *            Told, on the sender thread, whether the chunk was delivered
+	 */
+	public static void sendLater(InetSocketAddress endpoint, Chunk chunk, Consumer<Boolean> done) {
+		senders.execute(() -> {
+			boolean delivered;
+			try {
+				send(endpoint, chunk);
+				delivered = true;
+			} catch (IOException e) {
+				delivered = false;
+			}
+			done.accept(delivered);
+		});
+	}
+
+	/**
+	 * Sends a chunk to the endpoint of an initiator.
+	 *
+	 * @param endpoint
+	 *            Endpoint taken from the GETCHUNK
+	 * @param chunk
+	 *            Chunk to send; its buffer is not modified
+	 * @throws IOException
+	 *             If the chunk could not be delivered
+	 */
+	public static void send(InetSocketAddress endpoint, Chunk chunk) throws IOException {
+		try (Socket socket = new Socket()) {
+			socket.connect(endpoint, CONNECT_TIMEOUT);
+			socket.setSoTimeout(CONNECT_TIMEOUT);
+
+			ByteBuffer content = chunk.getBuffer().duplicate();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeUTF(chunk.getFileId());
+			out.writeInt(chunk.getChunkNumber());
+			out.writeInt(content.remaining());
+			out.flush();
+
+			WritableByteChannel channel = Channels.newChannel(socket.getOutputStream());
+			while (content.hasRemaining())
+				channel.write(content);
+			socket.shutdownOutput();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		server.close();
+		readers.shutdownNow();
+	}
+
+	/**
+	 * @return The first IPv4 address of the multicast interface, or the local
+	 *         host address if it has none
+	 */
+	private static InetAddress multicastAddress() throws IOException {
+		NetworkInterface nif = NioMulticastChannel.multicastInterface();
+
+		if (nif != null) {
+			Enumeration<InetAddress> addresses = nif.getInetAddresses();
+			while (addresses.hasMoreElements()) {
+				InetAddress address = addresses.nextElement();
+				if (address instanceof Inet4Address)
+					return address;
+			}
+		}
+
+		return InetAddress.getLocalHost();
+	}
+
+	private void accept() {
+		while (server.isOpen()) {
+			try {
+				SocketChannel connection = server.accept();
+				readers.execute(() -> read(connection));
+			} catch (IOException e) {
+				if (server.isOpen())
+					System.err.println("Failed to accept a chunk connection.");
+			}
+		}
+	}
+
+	/**
+	 * Reads frames until the serving peer closes the connection.
+	 */
+	private void read(SocketChannel connection) {
+		try (SocketChannel c = connection;
+				DataInputStream in = new DataInputStream(
+						new BufferedInputStream(c.socket().getInputStream()))) {
+			c.socket().setSoTimeout(CONNECT_TIMEOUT);
+
+			while (true) {
+				String fileId;
+				try {
+					fileId = in.readUTF();
+				} catch (EOFException e) {
+					return;
+				}
+
+				int chunkNo = in.readInt();
+				int length = in.readInt();
+				if (length < 0 || length > MAX_CHUNK)
+					throw new IOException("Bad chunk length " + length);
+
+				byte[] content = new byte[length];
+				in.readFully(content);
+
+				Chunk chunk = new Chunk(fileId, chunkNo, 0, ByteBuffer.wrap(content));
+				for (MdrHandler.ChunkListener listener : listeners)
+					listener.received(chunk);
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to read a chunk over TCP.");
+		}
+	}
+}